@@ -0,0 +1,150 @@
+package it.unitn.ds1;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import akka.actor.ActorSystem;
+import akka.testkit.TestActorRef;
+import akka.testkit.javadsl.TestKit;
+
+/*
+ * Validation and commit steps of a Server called directly, without message passing
+ * (TestActorRef gives access to the instance of the actor)
+ *
+ * The benchmarks cycle over POOL_SIZE prepared Txns, each one reading txnLength keys and writing half of them.
+ * A fraction conflictRate of the Txns conflict: they touch key 0, locked by another Txn, and their read of it is stale.
+ * The steps run with each validator of the server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerHotPathBenchmark {
+	static final int POOL_SIZE = 1024;
+	static final int CONFLICT_KEY = 0;
+
+	@Param({ "1000", "100000" })
+	public int partitionSize;
+
+	@Param({ "4", "16" })
+	public int txnLength;
+
+	@Param({ "0.0", "0.1", "0.5" })
+	public double conflictRate;
+
+	@Param({ "LOCKING", "TIMESTAMP" })
+	public Validator.Type validator;
+
+	private ActorSystem system;
+	private Server server;
+	private Server.PrivateWorkspace[] workspaces;
+	private int next;
+	private long commitTs;
+	// order timestamp of the next validation, after all the previous ones (TIMESTAMP validator)
+	private long orderTs;
+
+	/*
+	 * Keys of POOL_SIZE Txns: txnLength distinct keys in [1, partitionSize),
+	 * the first one is replaced by CONFLICT_KEY in a fraction conflictRate of the Txns
+	 */
+	static int[][] randomKeys(Random r, int partitionSize, int txnLength, double conflictRate) {
+		int[][] keys = new int[POOL_SIZE][];
+		for (int i = 0; i < POOL_SIZE; i++) {
+			keys[i] = r.ints(1, partitionSize).distinct().limit(txnLength).toArray();
+			if (r.nextDouble() < conflictRate)
+				keys[i][0] = CONFLICT_KEY;
+		}
+		return keys;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		system = ActorSystem.create("benchmark");
+		PartitionStore datastore = new ArrayPartitionStore(0, partitionSize, 0, 100);
+		SystemConfig config = new SystemConfig();
+		config.validator = validator;
+		TestActorRef<Server> ref = TestActorRef.create(system, Server.props(0, datastore, config));
+		server = ref.underlyingActor();
+
+		// the blocker holds the lock of CONFLICT_KEY for the whole trial
+		// (it writes the key: every validator locks the items written, exclusively)
+		Txn blocker = new Txn(Txn.makeTxnId(1, 0), 1, 0);
+		Server.PrivateWorkspace blockerPw = server.getOrCreatePrivateWorkspace(blocker);
+		server.ReadOperation(blockerPw, new DataOperation(DataOperation.Type.READ, CONFLICT_KEY, null));
+		server.WriteOperation(blockerPw, new DataOperation(DataOperation.Type.WRITE, CONFLICT_KEY, new DataItem(0, 0)));
+		server.CheckAndSetLocks(blocker, blockerPw);
+
+		int[][] keys = randomKeys(new Random(42), partitionSize, txnLength, conflictRate);
+		workspaces = new Server.PrivateWorkspace[POOL_SIZE];
+		for (int i = 0; i < POOL_SIZE; i++) {
+			Txn txn = new Txn(Txn.makeTxnId(0, i), 0, 0);
+			Server.PrivateWorkspace pw = server.getOrCreatePrivateWorkspace(txn);
+			for (int k = 0; k < keys[i].length; k++) {
+				server.ReadOperation(pw, new DataOperation(DataOperation.Type.READ, keys[i][k], null));
+				if (k % 2 == 0)
+					server.WriteOperation(pw, new DataOperation(DataOperation.Type.WRITE, keys[i][k], new DataItem(0, k)));
+			}
+			if (keys[i][0] == CONFLICT_KEY)
+				pw.getEntries().get(CONFLICT_KEY).getReadItem().setVersion(-1);
+			workspaces[i] = pw;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		TestKit.shutdownActorSystem(system);
+	}
+
+	private Server.PrivateWorkspace nextWorkspace() {
+		Server.PrivateWorkspace pw = workspaces[next];
+		next = (next + 1) % POOL_SIZE;
+		return pw;
+	}
+
+	// Lock the keys of a Txn and release them, so that the next use of the workspace finds them free
+	@Benchmark
+	public boolean lockAndRelease() {
+		Server.PrivateWorkspace pw = nextWorkspace();
+		boolean locked = server.CheckAndSetLocks(pw.getTxn(), pw);
+		server.ReleaseLocks(pw.getTxn());
+		return locked;
+	}
+
+	@Benchmark
+	public boolean validate() {
+		Server.PrivateWorkspace pw = nextWorkspace();
+		pw.getTxn().setOrderTs(++orderTs);
+		return server.ValidateWorkspace(pw);
+	}
+
+	// Lookup of the last write of every key of the Txn, done by each READ and WRITE in the workspace
+	@Benchmark
+	public void lastWrite(Blackhole bh) {
+		Server.PrivateWorkspace pw = nextWorkspace();
+		for (Integer dataId : pw.getEntries().keySet())
+			bh.consume(pw.getLastWrite(dataId));
+	}
+
+	// Installation of the writes on COMMIT (the versions in the data store keep growing)
+	@Benchmark
+	public void applyWrites() {
+		server.ApplyWrites(nextWorkspace(), ++commitTs);
+	}
+}
@@ -0,0 +1,110 @@
+package it.unitn.ds1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.TestActorRef;
+import akka.testkit.javadsl.TestKit;
+
+/*
+ * A whole Txn on a Server through its messages: batched READ, TXN_ASK_VOTE with the WRITEs, decision
+ *
+ * With dispatch=callingThread the Server is a TestActorRef and handles each message in the benchmark thread,
+ * with dispatch=actor it is a normal actor and the cost of the mailbox and of the thread hops is included.
+ * Keys and conflicts are chosen as in ServerHotPathBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerMessageBenchmark {
+
+	@Param({ "callingThread", "actor" })
+	public String dispatch;
+
+	@Param({ "1000", "100000" })
+	public int partitionSize;
+
+	@Param({ "4", "16" })
+	public int txnLength;
+
+	@Param({ "0.0", "0.1", "0.5" })
+	public double conflictRate;
+
+	private ActorSystem system;
+	private ActorRef server;
+	private TestKit probe;
+	private int[][] keys;
+	private int next;
+	private int nextSeqNum;
+	private long commitTs;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		system = ActorSystem.create("benchmark");
+		PartitionStore datastore = new ArrayPartitionStore(0, partitionSize, 0, 100);
+		if (dispatch.equals("callingThread"))
+			server = TestActorRef.create(system, Server.props(0, datastore));
+		else
+			server = system.actorOf(Server.props(0, datastore), "server0");
+		probe = new TestKit(system);
+
+		// the blocker holds the lock of CONFLICT_KEY for the whole trial
+		Txn blocker = new Txn(Txn.makeTxnId(1, 0), 1, 0);
+		List<DataOperation> blockerReads = new ArrayList<DataOperation>();
+		blockerReads.add(new DataOperation(DataOperation.Type.READ, ServerHotPathBenchmark.CONFLICT_KEY, null));
+		server.tell(new Coordinator.MultiReadMsg(blocker, blockerReads), probe.getRef());
+		probe.expectMsgClass(Coordinator.MultiReadResultMsg.class);
+		server.tell(new Coordinator.TxnAskVoteMsg(blocker, false), probe.getRef());
+		probe.expectMsgClass(Server.TxnVoteMsg.class);
+
+		keys = ServerHotPathBenchmark.randomKeys(new Random(42), partitionSize, txnLength, conflictRate);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		TestKit.shutdownActorSystem(system);
+	}
+
+	// READ all the keys, write half of them, then commit if the Server votes COMMIT
+	@Benchmark
+	public boolean readValidateCommit() {
+		int[] txnKeys = keys[next];
+		next = (next + 1) % ServerHotPathBenchmark.POOL_SIZE;
+		Txn txn = new Txn(Txn.makeTxnId(0, nextSeqNum++), 0, 0);
+
+		List<DataOperation> reads = new ArrayList<DataOperation>();
+		List<DataOperation> writes = new ArrayList<DataOperation>();
+		for (int k = 0; k < txnKeys.length; k++) {
+			reads.add(new DataOperation(DataOperation.Type.READ, txnKeys[k], null));
+			if (k % 2 == 0)
+				writes.add(new DataOperation(DataOperation.Type.WRITE, txnKeys[k], new DataItem(0, k)));
+		}
+		server.tell(new Coordinator.MultiReadMsg(txn, reads), probe.getRef());
+		probe.expectMsgClass(Coordinator.MultiReadResultMsg.class);
+		server.tell(new Coordinator.TxnAskVoteMsg(txn, false, writes), probe.getRef());
+		Server.TxnVoteMsg vote = probe.expectMsgClass(Server.TxnVoteMsg.class);
+		server.tell(new Coordinator.TxnVoteResultMsg(txn, vote.vote, ++commitTs), probe.getRef());
+		return vote.vote;
+	}
+}
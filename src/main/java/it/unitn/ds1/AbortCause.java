@@ -0,0 +1,23 @@
+package it.unitn.ds1;
+
+/*
+ * Reason of an ABORT seen by a server
+ */
+public enum AbortCause {
+	// an item of the Txn is locked by another Txn
+	LOCK_CONFLICT,
+	// a version read by the Txn is no longer the one in the data store
+	STALE_READ,
+	// the version overwritten by the Txn is no longer the one in the data store
+	WRITE_CONFLICT,
+	// the client asked to abort
+	CLIENT_ABORT,
+	// the server voted COMMIT, another server voted ABORT
+	PARTICIPANT_ABORT,
+	// an item of the Txn is moving, or moved, to another server
+	RANGE_MOVED,
+	// the server voted COMMIT, the lease of the locks expired before the decision and the coordinator aborted
+	LEASE_EXPIRED,
+	// the order timestamp of the Txn is not after the last write (or validated read) of an item (TIMESTAMP validator)
+	TIMESTAMP_ORDER
+}
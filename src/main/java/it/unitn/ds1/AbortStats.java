@@ -0,0 +1,65 @@
+package it.unitn.ds1;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Number of ABORTs of a server by cause, and the keys that caused them
+ * Written by the server only, other threads can read it at any time
+ */
+public class AbortStats implements AbortStatsMBean {
+	private static final int HOT_KEYS = 16;
+
+	private final AtomicLongArray causes = new AtomicLongArray(AbortCause.values().length);
+	private final HotKeySketch hotKeys = new HotKeySketch(HOT_KEYS);
+
+	public void record(AbortCause cause) {
+		int index = cause.ordinal();
+		causes.lazySet(index, causes.get(index) + 1);
+	}
+
+	// ABORT caused by a conflict on the given key
+	public void record(AbortCause cause, int key) {
+		record(cause);
+		hotKeys.record(key);
+	}
+
+	public long getCount(AbortCause cause) {
+		return causes.get(cause.ordinal());
+	}
+
+	public long getLockConflicts() {
+		return getCount(AbortCause.LOCK_CONFLICT);
+	}
+
+	public long getStaleReads() {
+		return getCount(AbortCause.STALE_READ);
+	}
+
+	public long getWriteConflicts() {
+		return getCount(AbortCause.WRITE_CONFLICT);
+	}
+
+	public long getClientAborts() {
+		return getCount(AbortCause.CLIENT_ABORT);
+	}
+
+	public long getParticipantAborts() {
+		return getCount(AbortCause.PARTICIPANT_ABORT);
+	}
+
+	public long getRangeMovedAborts() {
+		return getCount(AbortCause.RANGE_MOVED);
+	}
+
+	public long getLeaseExpiredAborts() {
+		return getCount(AbortCause.LEASE_EXPIRED);
+	}
+
+	public long getTimestampOrderAborts() {
+		return getCount(AbortCause.TIMESTAMP_ORDER);
+	}
+
+	public String[] getHotKeys() {
+		return hotKeys.getTopKeys();
+	}
+}
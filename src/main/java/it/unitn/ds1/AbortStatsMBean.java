@@ -0,0 +1,25 @@
+package it.unitn.ds1;
+
+/*
+ * JMX view of the ABORTs of a server
+ */
+public interface AbortStatsMBean {
+	long getLockConflicts();
+
+	long getStaleReads();
+
+	long getWriteConflicts();
+
+	long getClientAborts();
+
+	long getParticipantAborts();
+
+	long getRangeMovedAborts();
+
+	long getLeaseExpiredAborts();
+
+	long getTimestampOrderAborts();
+
+	// most contended keys, from the most frequent
+	String[] getHotKeys();
+}
@@ -0,0 +1,158 @@
+package it.unitn.ds1;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Partition store for a contiguous range of keys [firstKey, firstKey + size), or for any sorted set of keys
+ * Version and value of a key are packed in a single long (version in the high 32 bits),
+ * so reading an item is one array access and there is no object per key
+ * (plus a binary search in the sorted keys if they are not contiguous)
+ */
+public class ArrayPartitionStore implements PartitionStore {
+	private final int firstKey;
+	// keys of the partition, null if they are contiguous
+	private final int[] keys;
+	private final long[] items;
+
+	public ArrayPartitionStore(int firstKey, int size, int initVersion, int initValue) {
+		this(firstKey, null, size, initVersion, initValue);
+	}
+
+	public ArrayPartitionStore(int[] keys, int initVersion, int initValue) {
+		this(keys.length == 0 ? 0 : keys[0], isContiguous(keys) ? null : keys.clone(), keys.length, initVersion,
+				initValue);
+	}
+
+	private ArrayPartitionStore(int firstKey, int[] keys, int size, int initVersion, int initValue) {
+		this.firstKey = firstKey;
+		this.keys = keys;
+		this.items = new long[size];
+		long item = pack(initVersion, initValue);
+		for (int i = 0; i < size; i++)
+			items[i] = item;
+	}
+
+	private ArrayPartitionStore(int[] keys, long[] items) {
+		this.firstKey = keys.length == 0 ? 0 : keys[0];
+		this.keys = isContiguous(keys) ? null : keys;
+		this.items = items;
+	}
+
+	/*
+	 * Check if sorted keys have no gap
+	 */
+	static boolean isContiguous(int[] keys) {
+		return keys.length == 0 || keys[keys.length - 1] - keys[0] == keys.length - 1;
+	}
+
+	/*
+	 * Position of the key in the items (negative if the key does not belong to the partition)
+	 */
+	private int slot(int key) {
+		if (keys != null)
+			return Arrays.binarySearch(keys, key);
+		int slot = key - firstKey;
+		return slot < items.length ? slot : -1;
+	}
+
+	static long pack(int version, int value) {
+		return ((long) version << 32) | (value & 0xFFFFFFFFL);
+	}
+
+	static int unpackVersion(long item) {
+		return (int) (item >>> 32);
+	}
+
+	static int unpackValue(long item) {
+		return (int) item;
+	}
+
+	public int getFirstKey() {
+		return firstKey;
+	}
+
+	@Override
+	public boolean contains(int key) {
+		return slot(key) >= 0;
+	}
+
+	@Override
+	public int getVersion(int key) {
+		return unpackVersion(items[slot(key)]);
+	}
+
+	@Override
+	public int getValue(int key) {
+		return unpackValue(items[slot(key)]);
+	}
+
+	@Override
+	public DataItem get(int key) {
+		int slot = slot(key);
+		if (slot < 0)
+			return null;
+		long item = items[slot];
+		return new DataItem(unpackVersion(item), unpackValue(item));
+	}
+
+	@Override
+	public void put(int key, int version, int value) {
+		items[slot(key)] = pack(version, value);
+	}
+
+	@Override
+	public int size() {
+		return items.length;
+	}
+
+	@Override
+	public Map<Integer, DataItem> toMap() {
+		Map<Integer, DataItem> copy = new HashMap<Integer, DataItem>();
+		for (int i = 0; i < items.length; i++) {
+			copy.put(keys == null ? firstKey + i : keys[i], new DataItem(unpackVersion(items[i]), unpackValue(items[i])));
+		}
+		return copy;
+	}
+
+	@Override
+	public PartitionStore rebuild(Map<Integer, DataItem> items) {
+		ArrayPartitionStore store = new ArrayPartitionStore(getSortedKeys(items), 0, 0);
+		for (Map.Entry<Integer, DataItem> entry : items.entrySet())
+			store.put(entry.getKey(), entry.getValue().getVersion(), entry.getValue().getValue());
+		return store;
+	}
+
+	@Override
+	public int[] getKeys() {
+		if (keys != null)
+			return keys.clone();
+		int[] contiguous = new int[items.length];
+		for (int i = 0; i < items.length; i++)
+			contiguous[i] = firstKey + i;
+		return contiguous;
+	}
+
+	@Override
+	public long[] copyPackedItems() {
+		return items.clone();
+	}
+
+	@Override
+	public PartitionStore restore(int[] keys, LongBuffer items) {
+		long[] restored = new long[keys.length];
+		items.get(restored);
+		return new ArrayPartitionStore(keys, restored);
+	}
+
+	static int[] getSortedKeys(Map<Integer, DataItem> items) {
+		int[] keys = new int[items.size()];
+		int i = 0;
+		for (Integer key : new TreeMap<Integer, DataItem>(items).keySet())
+			keys[i++] = key;
+		return keys;
+	}
+}
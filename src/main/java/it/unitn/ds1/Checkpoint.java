@@ -0,0 +1,77 @@
+package it.unitn.ds1;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Snapshot of the partition of a server, written in the background and read back by mapping the file
+ *
+ * Layout: magic, clock of the server, first segment of the write-ahead log written after the snapshot,
+ * number of items, the sorted keys (int) and their items (version and value packed in a long).
+ * The file is written under a temporary name and renamed once on the disk, a checkpoint is complete or absent.
+ */
+public class Checkpoint {
+	private static final int MAGIC = 0x4f434b50;
+	private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+
+	public final long clock;
+	public final long segment;
+	public final int[] keys;
+	// view of the mapped file
+	public final LongBuffer items;
+
+	private Checkpoint(long clock, long segment, int[] keys, LongBuffer items) {
+		this.clock = clock;
+		this.segment = segment;
+		this.keys = keys;
+		this.items = items;
+	}
+
+	/*
+	 * Write a checkpoint, replacing the previous one
+	 *
+	 * @param keys, items sorted keys and their packed items (PartitionStore.copyPackedItems)
+	 */
+	public static void write(Path path, long clock, long segment, int[] keys, long[] items) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		long size = HEADER_SIZE + (long) keys.length * (Integer.BYTES + Long.BYTES);
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			buffer.putLong(clock);
+			buffer.putLong(segment);
+			buffer.putInt(keys.length);
+			buffer.asIntBuffer().put(keys);
+			buffer.position(buffer.position() + keys.length * Integer.BYTES);
+			buffer.asLongBuffer().put(items);
+			buffer.force();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Map a checkpoint (null if there is none)
+	 */
+	public static Checkpoint read(Path path) throws IOException {
+		if (!Files.exists(path))
+			return null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC)
+				throw new IOException(path + " is not a checkpoint");
+			long clock = buffer.getLong();
+			long segment = buffer.getLong();
+			int[] keys = new int[buffer.getInt()];
+			buffer.asIntBuffer().get(keys);
+			buffer.position(buffer.position() + keys.length * Integer.BYTES);
+			return new Checkpoint(clock, segment, keys, buffer.asLongBuffer());
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+
+/*
+ * Consistent hashing: every server owns virtualNodes points of a ring of hashes,
+ * a key belongs to the server of the first point at or after its hash
+ * Adding or removing a server only moves the keys of its points
+ */
+public class ConsistentHashPartitioner implements Partitioner {
+	private final int numKeys;
+	private final int numServers;
+	// sorted points of the ring and the server owning each one
+	private final int[] points;
+	private final int[] owners;
+
+	public ConsistentHashPartitioner(int numKeys, int numServers, int virtualNodes) {
+		this.numKeys = numKeys;
+		this.numServers = numServers;
+		// point in the high 32 bits, server in the low 32 bits: sorting orders by point
+		long[] ring = new long[numServers * virtualNodes];
+		for (int serverId = 0; serverId < numServers; serverId++) {
+			for (int v = 0; v < virtualNodes; v++) {
+				int point = Partitioner.mix(Partitioner.mix(serverId) + v * 0x9e3779b9);
+				ring[serverId * virtualNodes + v] = ((long) point << 32) | serverId;
+			}
+		}
+		Arrays.sort(ring);
+		this.points = new int[ring.length];
+		this.owners = new int[ring.length];
+		for (int i = 0; i < ring.length; i++) {
+			points[i] = (int) (ring[i] >> 32);
+			owners[i] = (int) ring[i];
+		}
+	}
+
+	@Override
+	public int getServerId(int key) {
+		int i = Arrays.binarySearch(points, Partitioner.mix(key));
+		if (i < 0)
+			i = -i - 1;
+		// past the last point, the ring wraps around
+		return owners[i == points.length ? 0 : i];
+	}
+
+	@Override
+	public int getNumServers() {
+		return numServers;
+	}
+
+	@Override
+	public int getNumKeys() {
+		return numKeys;
+	}
+}
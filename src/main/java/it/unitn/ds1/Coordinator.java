@@ -1,6 +1,13 @@
 package it.unitn.ds1;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -15,19 +22,62 @@ import org.apache.logging.log4j.Logger;
 import akka.actor.*;
 import it.unitn.ds1.TxnClient.*;
 
-public class Coordinator extends AbstractActor {
+public class Coordinator extends MeteredActor {
 	private final Integer coordinatorId;
 	private Map<Integer, ActorRef> clients, servers;
+	// read replicas of each server (none if the servers have no replica)
+	private Map<Integer, List<ActorRef>> replicas;
 	private Map<Txn, List<DataOperation>> transactions;
-	private Integer N_KEY_SERVER;
+	// ongoing Txn of each client
+	private Map<Integer, Txn> clientTxns;
+	// sequence number of the next Txn started by the coordinator
+	private int nextTxnSeqNum;
+	// placement of the keys on the servers
+	private Partitioner partitioner;
+	private SystemConfig config;
+	// Lamport clock, highest timestamp seen from the servers (multiVersion mode, TIMESTAMP validator)
+	private long clock;
+
+	// Log of the COMMIT decisions (null without walDir): a Txn without COMMIT in the log is aborted (presumed abort)
+	private WriteAheadLog decisionLog;
+	// Txns decided COMMIT whose decision waits for the next flush of the log to be sent
+	private final List<Txn> pendingCommits = new ArrayList<Txn>();
+	// True if a FlushMsg is in the mailbox
+	private boolean flushScheduled;
+	// COMMIT decisions logged and not acknowledged by all their servers yet, by Txn id (for the DecisionRequestMsgs
+	// of the servers)
+	private final Map<Long, Decision> commits = new HashMap<Long, Decision>();
+	// Segment of the decision log being written
+	private long logSegment;
+	// The sequence numbers below this bound are reserved in the log, a restarted coordinator doesn't reuse them
+	private int reservedSeqNum;
+	private static final int SEQ_NUM_BLOCK = 1 << 16;
+
+	// Time from the TXN_BEGIN of the client to the accept
+	private final LatencyHistogram beginAccept;
+	// Round trip of a READ request (single key or batch) to a server
+	private final LatencyHistogram readRoundTrip;
+	// Time from the vote requests to the last vote
+	private final LatencyHistogram voteCollection;
+	// Duration of a flush of the decision log and number of decisions it wrote
+	private final LatencyHistogram decisionFlush, decisionBatch;
 
 	private static final Logger log = LogManager.getLogger(Coordinator.class);
 
 	/*-- Actor constructor ---------------------------------------------------- */
 
 	public Coordinator(int coordinatorId) {
+		super("Coordinator", coordinatorId);
 		this.coordinatorId = coordinatorId;
 		this.transactions = new HashMap<Txn, List<DataOperation>>();
+		this.clientTxns = new HashMap<Integer, Txn>();
+		this.nextTxnSeqNum = 0;
+		this.clock = 0;
+		this.beginAccept = newHistogram("beginAccept");
+		this.readRoundTrip = newHistogram("readRoundTrip");
+		this.voteCollection = newHistogram("voteCollection");
+		this.decisionFlush = newHistogram("decisionFlush");
+		this.decisionBatch = newHistogram("decisionBatch");
 	}
 
 	static public Props props(int coordinatorId) {
@@ -36,17 +86,50 @@ public class Coordinator extends AbstractActor {
 
 	/*-- Message classes ------------------------------------------------------ */
 
+	// Sent by the coordinator to itself to flush the decision log, after the messages already in the mailbox
+	private static class FlushMsg implements Serializable {
+	}
+
+	// Sent by the coordinator to itself every walSyncMs milliseconds (INTERVAL sync policy)
+	private static class SyncTickMsg implements Serializable {
+	}
+
+	// Sent by the coordinator to itself every checkpointMs milliseconds to rotate the decision log
+	private static class RotateTickMsg implements Serializable {
+	}
+
+	// A logged COMMIT decision: commit timestamp and servers that didn't acknowledge it yet
+	private static class Decision {
+		final long commitTs;
+		final Set<Integer> pending;
+
+		Decision(long commitTs, Set<Integer> pending) {
+			this.commitTs = commitTs;
+			this.pending = pending;
+		}
+	}
+
 	/*
-	 * Welcome message informs about client, servers, and number of items per server
+	 * Welcome message informs about client, servers, their replicas, and placement of the items on the servers
 	 */
 	public static class WelcomeMsg implements Serializable {
 		public final Map<Integer, ActorRef> clients, servers;
-		public final Integer N_KEY_SERVER;
+		public final Map<Integer, List<ActorRef>> replicas;
+		public final Partitioner partitioner;
+		public final SystemConfig config;
 
-		public WelcomeMsg(Map<Integer, ActorRef> clients, Map<Integer, ActorRef> servers, Integer N_KEY_SERVER) {
+		public WelcomeMsg(Map<Integer, ActorRef> clients, Map<Integer, ActorRef> servers,
+				Map<Integer, List<ActorRef>> replicas, Partitioner partitioner, SystemConfig config) {
 			this.clients = Collections.unmodifiableMap(new HashMap<Integer, ActorRef>(clients));
 			this.servers = Collections.unmodifiableMap(new HashMap<Integer, ActorRef>(servers));
-			this.N_KEY_SERVER = N_KEY_SERVER;
+			this.replicas = Collections.unmodifiableMap(new HashMap<Integer, List<ActorRef>>(replicas));
+			this.partitioner = partitioner;
+			this.config = config;
+		}
+
+		public WelcomeMsg(Map<Integer, ActorRef> clients, Map<Integer, ActorRef> servers, Partitioner partitioner,
+				SystemConfig config) {
+			this(clients, servers, Collections.<Integer, List<ActorRef>>emptyMap(), partitioner, config);
 		}
 	}
 
@@ -56,10 +139,12 @@ public class Coordinator extends AbstractActor {
 	public static class ReadMsg implements Serializable {
 		public final Txn txn;
 		public final DataOperation dataoperation;
+		public final long sentNanos; // System.nanoTime() at creation, sent back with the result
 
 		public ReadMsg(Txn txn, DataOperation dataoperation) {
 			this.txn = txn;
 			this.dataoperation = dataoperation;
+			this.sentNanos = System.nanoTime();
 		}
 	}
 
@@ -76,14 +161,96 @@ public class Coordinator extends AbstractActor {
 		}
 	}
 
+	/*
+	 * Batch of READ requests from the coordinator to a server
+	 */
+	public static class MultiReadMsg implements Serializable {
+		public final Txn txn;
+		public final List<DataOperation> dataoperations;
+		public final long sentNanos; // System.nanoTime() at creation, sent back with the results
+
+		public MultiReadMsg(Txn txn, List<DataOperation> dataoperations) {
+			this.txn = txn;
+			this.dataoperations = Collections.unmodifiableList(dataoperations);
+			this.sentNanos = System.nanoTime();
+		}
+	}
+
+	/*
+	 * Batch of WRITE requests from the coordinator to a server
+	 */
+	public static class MultiWriteMsg implements Serializable {
+		public final Txn txn;
+		public final List<DataOperation> dataoperations;
+
+		public MultiWriteMsg(Txn txn, List<DataOperation> dataoperations) {
+			this.txn = txn;
+			this.dataoperations = Collections.unmodifiableList(dataoperations);
+		}
+	}
+
 	/*
 	 * Message sent to ask for a vote to a server
 	 */
 	public static class TxnAskVoteMsg implements Serializable {
 		public final Txn txn;
+		public final boolean readOnly; // true if the transaction has no WRITE operation
+		public final List<DataOperation> writes; // final WRITEs for the server (deferredWrites mode)
+		public final List<DataOperation> reads; // READs of the server items served by its replicas, to validate
+
+		public TxnAskVoteMsg(Txn txn, boolean readOnly) {
+			this(txn, readOnly, Collections.<DataOperation>emptyList());
+		}
+
+		public TxnAskVoteMsg(Txn txn, boolean readOnly, List<DataOperation> writes) {
+			this(txn, readOnly, writes, Collections.<DataOperation>emptyList());
+		}
+
+		public TxnAskVoteMsg(Txn txn, boolean readOnly, List<DataOperation> writes, List<DataOperation> reads) {
+			this.txn = txn;
+			this.readOnly = readOnly;
+			this.writes = writes;
+			this.reads = reads;
+		}
+
+	}
+
+	/*
+	 * Message sent to validate the reads of a read-only transaction, without locks nor decision
+	 * The server answers with its vote and drops the private workspace
+	 */
+	public static class TxnValidateReadOnlyMsg implements Serializable {
+		public final Txn txn;
+		public final List<DataOperation> reads; // READs of the server items served by its replicas
 
-		public TxnAskVoteMsg(Txn txn) {
+		public TxnValidateReadOnlyMsg(Txn txn) {
+			this(txn, Collections.<DataOperation>emptyList());
+		}
+
+		public TxnValidateReadOnlyMsg(Txn txn, List<DataOperation> reads) {
 			this.txn = txn;
+			this.reads = reads;
+		}
+
+	}
+
+	/*
+	 * Message sent to the only server involved in a transaction, to validate and commit it in one step
+	 * The server answers with the outcome (Server.TxnOutcomeMsg)
+	 */
+	public static class TxnOnePhaseCommitMsg implements Serializable {
+		public final Txn txn;
+		public final List<DataOperation> writes; // final WRITEs for the server (deferredWrites mode)
+		public final List<DataOperation> reads; // READs of the server items served by its replicas
+
+		public TxnOnePhaseCommitMsg(Txn txn, List<DataOperation> writes) {
+			this(txn, writes, Collections.<DataOperation>emptyList());
+		}
+
+		public TxnOnePhaseCommitMsg(Txn txn, List<DataOperation> writes, List<DataOperation> reads) {
+			this.txn = txn;
+			this.writes = writes;
+			this.reads = reads;
 		}
 
 	}
@@ -94,10 +261,16 @@ public class Coordinator extends AbstractActor {
 	public static class TxnVoteResultMsg implements Serializable {
 		public final Txn txn;
 		public final boolean commit;
+		public final long commitTs; // timestamp of the versions installed by the transaction
 
 		public TxnVoteResultMsg(Txn txn, boolean commit) {
+			this(txn, commit, 0);
+		}
+
+		public TxnVoteResultMsg(Txn txn, boolean commit, long commitTs) {
 			this.txn = txn;
 			this.commit = commit;
+			this.commitTs = commitTs;
 		}
 
 	}
@@ -109,11 +282,60 @@ public class Coordinator extends AbstractActor {
 		public final Integer serverId;
 		public final Txn txn;
 		public final DataOperation dataoperation;
+		public final long clock; // Lamport clock of the server
+		public final boolean snapshot; // true if the item was read from the snapshot of the transaction
+		public final long sentNanos; // creation time of the READ request
+		public final boolean replica; // true if a replica of the server served the READ
 
-		public ReadResultMsg(Integer serverId, Txn txn, DataOperation dataoperation) {
+		public ReadResultMsg(Integer serverId, Txn txn, DataOperation dataoperation, long clock, boolean snapshot,
+				long sentNanos, boolean replica) {
 			this.serverId = serverId;
 			this.txn = txn;
 			this.dataoperation = dataoperation;
+			this.clock = clock;
+			this.snapshot = snapshot;
+			this.sentNanos = sentNanos;
+			this.replica = replica;
+		}
+	}
+
+	/*
+	 * Message sent by a server with the results of a batch of READ requests
+	 */
+	public static class MultiReadResultMsg implements Serializable {
+		public final Integer serverId;
+		public final Txn txn;
+		public final List<DataOperation> dataoperations;
+		public final long clock; // Lamport clock of the server
+		public final boolean snapshot; // true if the items were read from the snapshot of the transaction
+		public final long sentNanos; // creation time of the READ request
+		public final boolean replica; // true if a replica of the server served the READs
+
+		public MultiReadResultMsg(Integer serverId, Txn txn, List<DataOperation> dataoperations, long clock,
+				boolean snapshot, long sentNanos, boolean replica) {
+			this.serverId = serverId;
+			this.txn = txn;
+			this.dataoperations = dataoperations;
+			this.clock = clock;
+			this.snapshot = snapshot;
+			this.sentNanos = sentNanos;
+			this.replica = replica;
+		}
+	}
+
+	/*
+	 * Message sent by a server when a range of keys it stored moved to another server
+	 */
+	public static class RoutingUpdateMsg implements Serializable {
+		public final int fromKey, toKey;
+		public final Integer serverId; // new server of the keys [fromKey, toKey)
+		public final long migrationId;
+
+		public RoutingUpdateMsg(int fromKey, int toKey, int serverId, long migrationId) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.serverId = serverId;
+			this.migrationId = migrationId;
 		}
 	}
 
@@ -121,61 +343,335 @@ public class Coordinator extends AbstractActor {
 
 	/*
 	 * Retrieve the server ID using the key value
-	 * The coordinator is aware of the convention used by the distributed data store
+	 * The placement of the keys is given by the partitioner shared with the CtrlSystem
 	 * 
 	 * @param key
 	 * @return
 	 */
 	private Integer getServerIdByKey(Integer key) {
-		return (key / N_KEY_SERVER);
+		return partitioner.getServerId(key);
 	}
 
 	/*
-	 * Retrieve the server actor using the key value
+	 * Choose where to send the READs of a transaction on the items of a server
+	 * Until its first WRITE a transaction reads from a replica of the server, if any (the same one for the whole
+	 * transaction), the server then validates those READs at commit; later READs must see the WRITEs of the
+	 * transaction and go to the server
 	 * 
-	 * @param key
-	 * @return
+	 * @param txn, serverId
+	 * @return the replica, or null to read from the server
 	 */
-	private ActorRef getServerByKey(Integer key) {
-		return servers.get(getServerIdByKey(key));
+	private ActorRef getReplica(Txn txn, Integer serverId) {
+		List<ActorRef> serverReplicas = replicas.get(serverId);
+		if (serverReplicas == null || serverReplicas.isEmpty() || !isReadOnly(txn))
+			return null;
+		return serverReplicas.get((int) ((txn.getTxnId() & 0xFFFFFFFFL) % serverReplicas.size()));
 	}
-	
+
 	/*
-	 * Retrieve the client ID using the key value
+	 * Retrieve the ongoing transaction of a client
 	 * 
 	 * @param clientId
 	 * @return
 	 */
 	private Txn getTxnByClientId(Integer clientId) {
-		for (Txn txn : transactions.keySet()) {
-			Integer clientIdCheck = txn.getClientId();
-			if (clientIdCheck == clientId) {
-				return (txn);
+		return clientTxns.get(clientId);
+	}
+
+	/*
+	 * Forget a transaction once it is committed or aborted
+	 * 
+	 * @param txn
+	 */
+	private void removeTxn(Txn txn) {
+		transactions.remove(txn);
+		if (txn.equals(clientTxns.get(txn.getClientId())))
+			clientTxns.remove(txn.getClientId());
+	}
+
+	/*
+	 * Segment of the decision log of a coordinator
+	 */
+	static Path getDecisionLogPath(String walDir, int coordinatorId, long segment) {
+		return Paths.get(walDir, "coordinator" + coordinatorId + "-" + segment + ".wal");
+	}
+
+	// Segments of the decision log of the coordinator, from the oldest
+	private List<Long> getLogSegments() throws IOException {
+		List<Long> segments = new ArrayList<Long>();
+		String prefix = "coordinator" + coordinatorId + "-";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(config.walDir), prefix + "*.wal")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(Long.parseLong(name.substring(prefix.length(), name.length() - ".wal".length())));
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	// Servers of a Txn as the items of its COMMIT record (the values are not used)
+	private static Map<Integer, DataItem> getParticipantItems(Set<Integer> serverIds) {
+		Map<Integer, DataItem> items = new HashMap<Integer, DataItem>();
+		for (Integer serverId : serverIds)
+			items.put(serverId, new DataItem(0, 0));
+		return items;
+	}
+
+	/*
+	 * Read the decision log left by a previous run: the COMMIT decisions not acknowledged by all their servers
+	 * (a segment may repeat a decision with fewer servers) and the reserved sequence numbers
+	 */
+	private void Recover() throws IOException {
+		int records = 0;
+		for (long segment : getLogSegments()) {
+			records += WriteAheadLog.replay(getDecisionLogPath(config.walDir, coordinatorId, segment),
+					(type, id, ts, items) -> {
+						if (type == WriteAheadLog.COMMIT) {
+							commits.put(id, new Decision(ts, new HashSet<Integer>(items.keySet())));
+							clock = Math.max(clock, ts);
+						} else if (type == WriteAheadLog.TXN_IDS) {
+							nextTxnSeqNum = Math.max(nextTxnSeqNum, (int) id);
+						}
+					});
+			logSegment = segment + 1;
+		}
+		reservedSeqNum = nextTxnSeqNum;
+		log.info("coordinator" + coordinatorId + ": " + records + " records replayed from the decision log, "
+				+ commits.size() + " COMMIT decisions");
+	}
+
+	/*
+	 * Close the segment of the decision log being written and start the next one with what is still needed:
+	 * the reserved sequence numbers and the decisions not acknowledged yet; then the old segments can go
+	 */
+	private void RotateLog() throws IOException {
+		if (decisionLog != null) {
+			FlushLog(true);
+			decisionLog.close();
+		}
+		long segment = logSegment++;
+		decisionLog = new WriteAheadLog(getDecisionLogPath(config.walDir, coordinatorId, segment));
+		decisionLog.append(WriteAheadLog.TXN_IDS, reservedSeqNum, 0, Collections.<Integer, DataItem>emptyMap());
+		for (Map.Entry<Long, Decision> entry : commits.entrySet()) {
+			decisionLog.append(WriteAheadLog.COMMIT, entry.getKey(), entry.getValue().commitTs,
+					getParticipantItems(entry.getValue().pending));
+		}
+		FlushLog(true);
+		for (long old : getLogSegments()) {
+			if (old < segment)
+				Files.deleteIfExists(getDecisionLogPath(config.walDir, coordinatorId, old));
+		}
+		log.debug("coordinator" + coordinatorId + ": decision log truncated before segment " + segment + ", "
+				+ commits.size() + " COMMIT decisions kept");
+	}
+
+	// Keep the COMMIT decision of a Txn (on the disk) until all its servers acknowledged it
+	private void KeepDecision(Txn txn) {
+		commits.put(txn.getTxnId(), new Decision(txn.getCommitTs(), new HashSet<Integer>(getServersId(txn))));
+	}
+
+	/*
+	 * Reserve the next block of sequence numbers: the record is on the disk before any of them is used
+	 */
+	private void ReserveSeqNums() {
+		reservedSeqNum = nextTxnSeqNum + SEQ_NUM_BLOCK;
+		decisionLog.append(WriteAheadLog.TXN_IDS, reservedSeqNum, 0, Collections.<Integer, DataItem>emptyMap());
+		FlushLog(true);
+	}
+
+	/*
+	 * Send the COMMIT decision of a Txn to its servers and to its client
+	 * With the COMMIT sync policy it waits for the record of the decision to reach the disk,
+	 * otherwise the record is written with the next FlushMsg (and forced by the SyncTickMsg with INTERVAL)
+	 * 
+	 * @param txn
+	 */
+	private void SendCommit(Txn txn) {
+		if (decisionLog != null) {
+			decisionLog.append(WriteAheadLog.COMMIT, txn.getTxnId(), txn.getCommitTs(),
+					getParticipantItems(getServersId(txn)));
+			if (!flushScheduled) {
+				flushScheduled = true;
+				getSelf().tell(new FlushMsg(), getSelf());
+			}
+			if (config.walSync == WriteAheadLog.SyncPolicy.COMMIT) {
+				pendingCommits.add(txn);
+				return;
 			}
+			KeepDecision(txn);
+		}
+		DeliverCommit(txn);
+	}
+
+	// Tell the servers and the client of a Txn that it committed
+	private void DeliverCommit(Txn txn) {
+		for (Integer serverId : getServersId(txn)) {
+			// Tell all servers to COMMIT
+			servers.get(serverId).tell(new Coordinator.TxnVoteResultMsg(txn, true, txn.getCommitTs()), getSelf());
+		}
+		// Inform the client of the successful transaction
+		clients.get(txn.getClientId()).tell(new TxnResultMsg(true), getSelf());
+	}
+
+	/*
+	 * Write the decisions logged since the last flush, then send the ones waiting for them
+	 * 
+	 * @param force also force the records to the disk
+	 */
+	private void FlushLog(boolean force) {
+		long start = System.nanoTime();
+		try {
+			decisionBatch.record(decisionLog.flush(force));
+		} catch (IOException e) {
+			throw new UncheckedIOException("coordinator" + coordinatorId + ": decision log not written", e);
+		}
+		decisionFlush.record(System.nanoTime() - start);
+		for (Txn txn : pendingCommits) {
+			KeepDecision(txn);
+			DeliverCommit(txn);
+		}
+		pendingCommits.clear();
+	}
+
+	/*
+	 * Abort a Txn still collecting its votes, the votes arriving later are ignored
+	 * 
+	 * @param txn
+	 */
+	private void AbortTxn(Txn txn) {
+		for (Integer serverId : getServersId(txn)) {
+			servers.get(serverId).tell(new Coordinator.TxnVoteResultMsg(txn, false), getSelf());
 		}
-		return null;
+		clients.get(txn.getClientId()).tell(new TxnResultMsg(false), getSelf());
+		removeTxn(txn);
 	}
 
 	/*-- Message handlers ---------------------------------------------------- - */
 
-	private void onWelcomeMsg(WelcomeMsg msg) {
+	private void onWelcomeMsg(WelcomeMsg msg) throws IOException {
 		this.clients = msg.clients;
 		this.servers = msg.servers;
-		this.N_KEY_SERVER = msg.N_KEY_SERVER;
+		this.replicas = msg.replicas;
+		this.partitioner = msg.partitioner;
+		this.config = msg.config;
+		if (config.walDir != null) {
+			Files.createDirectories(Paths.get(config.walDir));
+			Recover();
+			RotateLog();
+			ReserveSeqNums();
+			// the servers may not have applied the recovered decisions, they acknowledge them again
+			for (Map.Entry<Long, Decision> entry : commits.entrySet()) {
+				Txn txn = new Txn(entry.getKey(), coordinatorId, -1);
+				for (Integer serverId : entry.getValue().pending) {
+					servers.get(serverId)
+							.tell(new Coordinator.TxnVoteResultMsg(txn, true, entry.getValue().commitTs), getSelf());
+				}
+			}
+			if (config.walSync == WriteAheadLog.SyncPolicy.INTERVAL)
+				scheduleSyncTick();
+			if (config.checkpointMs > 0)
+				scheduleRotateTick();
+		}
+	}
+
+	private void scheduleRotateTick() {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.checkpointMs), getSelf(),
+				new RotateTickMsg(), getContext().system().dispatcher(), getSelf());
+	}
+
+	// The decisions acknowledged since the last rotation leave the log
+	private void OnRotateTickMsg(RotateTickMsg msg) {
+		scheduleRotateTick();
+		try {
+			RotateLog();
+		} catch (IOException e) {
+			throw new UncheckedIOException("coordinator" + coordinatorId + ": decision log not rotated", e);
+		}
+	}
+
+	// A server applied a COMMIT decision: the decision is forgotten once all its servers did
+	private void OnDecisionAckMsg(Server.DecisionAckMsg msg) {
+		Decision decision = commits.get(msg.txn.getTxnId());
+		if (decision == null)
+			return;
+		decision.pending.remove(msg.serverId);
+		if (decision.pending.isEmpty())
+			commits.remove(msg.txn.getTxnId());
+	}
+
+	// Group commit: one write (and one fsync with the COMMIT policy) for every decision taken since the last flush
+	private void OnFlushMsg(FlushMsg msg) {
+		flushScheduled = false;
+		FlushLog(config.walSync == WriteAheadLog.SyncPolicy.COMMIT);
+	}
+
+	// INTERVAL sync policy: force the decisions written since the last tick
+	private void OnSyncTickMsg(SyncTickMsg msg) {
+		try {
+			decisionLog.force();
+		} catch (IOException e) {
+			throw new UncheckedIOException("coordinator" + coordinatorId + ": decision log not synced", e);
+		}
+		scheduleSyncTick();
+	}
+
+	private void scheduleSyncTick() {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.walSyncMs), getSelf(),
+				new SyncTickMsg(), getContext().system().dispatcher(), getSelf());
+	}
+
+	/*
+	 * Termination protocol: a server voted COMMIT and still waits for the decision
+	 * The coordinator answers only once it knows it: COMMIT if logged, ABORT if the Txn is neither
+	 * ongoing nor logged (aborted, or ongoing when the coordinator stopped)
+	 * If the lease of the locks of the Txn expired, an undecided Txn is aborted right away
+	 */
+	private void OnDecisionRequestMsg(Server.DecisionRequestMsg msg) {
+		Txn txn = msg.txn;
+		log.debug("coordinator" + coordinatorId + "<--[DECISION_REQUEST(" + txn.getTxnId() + ")]--server" + msg.serverId);
+		if (pendingCommits.contains(txn)) {
+			// the decision will be sent to the server
+			return;
+		}
+		if (transactions.containsKey(txn)) {
+			if (msg.leaseExpired)
+				AbortTxn(getTxnByClientId(txn.getClientId()));
+			return;
+		}
+		Decision decision = commits.get(txn.getTxnId());
+		if (decision != null)
+			getSender().tell(new Coordinator.TxnVoteResultMsg(txn, true, decision.commitTs), getSelf());
+		else
+			getSender().tell(new Coordinator.TxnVoteResultMsg(txn, false), getSelf());
+	}
+
+	// The next operations on the migrated keys go to their new server, ongoing transactions keep their participants
+	private void OnRoutingUpdateMsg(RoutingUpdateMsg msg) {
+		partitioner = RoutingPartitioner.withMove(partitioner, msg.fromKey, msg.toKey, msg.serverId, msg.migrationId);
+		log.debug("coordinator" + coordinatorId + ": keys [" + msg.fromKey + ", " + msg.toKey + ") moved to server"
+				+ msg.serverId);
 	}
 
 	private void OnTxnBeginMsg(TxnBeginMsg msg) {
 		Integer clientId = msg.clientId;
-		Txn txn = new Txn(coordinatorId, clientId);
 
 		log.debug("coordinator" + coordinatorId + "<--[TXN_BEGIN]--client" + clientId);
 
-		List<DataOperation> dataOperations = transactions.get(new Txn(coordinatorId, clientId));
-		if (dataOperations == null) {
-			// The client has no ongoing transaction, initialize the data operations
+		if (getTxnByClientId(clientId) == null) {
+			// The client has no ongoing transaction, give it a new unique id and initialize the data operations
+			if (decisionLog != null && nextTxnSeqNum == reservedSeqNum)
+				ReserveSeqNums();
+			Txn txn = new Txn(Txn.makeTxnId(coordinatorId, nextTxnSeqNum++), coordinatorId, clientId);
+			if (config.multiVersion) {
+				// The transaction reads the snapshot of the latest commits known by the coordinator
+				txn.setSnapshotTs(clock);
+			}
 			transactions.put(txn, new ArrayList<DataOperation>());
+			clientTxns.put(clientId, txn);
 			// Send a an accept message to the client
 			getSender().tell(new TxnAcceptMsg(), getSelf());
+			beginAccept.record(System.nanoTime() - msg.sentNanos);
 		} else {
 			// The client has an ongoing transaction, don't respond
 			log.debug("coordinator" + coordinatorId + ": client" + clientId + " has an ongoing transaction, ignore");
@@ -190,19 +686,38 @@ public class Coordinator extends AbstractActor {
 
 		// Retrieve the transaction
 		Txn txn = getTxnByClientId(clientId);
+		// Read-your-writes on a WRITE not shipped yet is answered by the coordinator
+		Integer bufferedValue = txn.getBufferedWrite(key);
+		if (bufferedValue != null) {
+			getSender().tell(new TxnClient.ReadResultMsg(key, bufferedValue), getSelf());
+			return;
+		}
 		// Set the operation to be add to the transaction
 		DataOperation dataOperation = new DataOperation(DataOperation.Type.READ, key, null);
 		// Append the READ operation to the list of data operations of the transaction
 		List<DataOperation> dataoperations = transactions.get(txn);
 		dataoperations.add(dataOperation);
-		// Send the READ request to the server
-		getServerByKey(key).tell(new Coordinator.ReadMsg(txn, dataOperation), getSelf());
+		// Send the READ request to the server, or to one of its replicas
+		Integer serverId = getServerIdByKey(key);
+		ActorRef replica = getReplica(txn, serverId);
+		if (replica != null) {
+			replica.tell(new Coordinator.ReadMsg(txn, dataOperation), getSelf());
+			return;
+		}
+		txn.addParticipant(serverId);
+		servers.get(serverId).tell(new Coordinator.ReadMsg(txn, dataOperation), getSelf());
 	}
 
 	private void OnReadResultMsg(Coordinator.ReadResultMsg msg) {
 		Integer serverId = msg.serverId;
 		Txn txn = msg.txn;
 		DataOperation dataoperation = msg.dataoperation;
+		readRoundTrip.record(System.nanoTime() - msg.sentNanos);
+		clock = Math.max(clock, msg.clock);
+		if (!msg.snapshot)
+			txn.setSnapshotIntact(false);
+		if (msg.replica)
+			txn.addReplicaRead(dataoperation.getKey(), dataoperation.getDataItem());
 
 		log.debug("coordinator" + coordinatorId + "<--[READ(" + dataoperation.getKey() + ")="
 				+ dataoperation.getDataItem().getValue() + "]--server" + serverId);
@@ -228,57 +743,197 @@ public class Coordinator extends AbstractActor {
 		DataOperation dataOperation = new DataOperation(DataOperation.Type.WRITE, key, dataItem);
 		// Append the WRITE operation to the list of data operations of the transaction
 		dataoperations.add(dataOperation);
+		if (config.deferredWrites) {
+			// The WRITE will be sent with the vote request
+			txn.bufferWrite(key, value);
+			return;
+		}
 		// Send the WRITE request to the server
-		getServerByKey(key).tell(new Coordinator.WriteMsg(txn, dataOperation), getSelf());
+		Integer serverId = getServerIdByKey(key);
+		txn.addParticipant(serverId);
+		servers.get(serverId).tell(new Coordinator.WriteMsg(txn, dataOperation), getSelf());
+	}
+
+	private void OnMultiReadMsg(TxnClient.MultiReadMsg msg) {
+		Integer clientId = msg.clientId;
+
+		log.debug("coordinator" + coordinatorId + "<--[READ" + msg.keys + "]--client" + clientId);
+
+		// Retrieve the transaction
+		Txn txn = getTxnByClientId(clientId);
+		List<DataOperation> dataoperations = transactions.get(txn);
+		// Group the READ operations by server, one batch per server
+		Map<Integer, List<DataOperation>> batches = new HashMap<Integer, List<DataOperation>>();
+		// Read-your-writes on WRITEs not shipped yet are answered by the coordinator
+		Map<Integer, Integer> bufferedValues = new HashMap<Integer, Integer>();
+		for (Integer key : msg.keys) {
+			Integer bufferedValue = txn.getBufferedWrite(key);
+			if (bufferedValue != null) {
+				bufferedValues.put(key, bufferedValue);
+				continue;
+			}
+			DataOperation dataOperation = new DataOperation(DataOperation.Type.READ, key, null);
+			dataoperations.add(dataOperation);
+			batches.computeIfAbsent(getServerIdByKey(key), k -> new ArrayList<DataOperation>()).add(dataOperation);
+		}
+		// The client gets a single answer once every batch is back
+		txn.startReadBatch(batches.size() + 1);
+		if (txn.addReadBatch(bufferedValues)) {
+			getSender().tell(new TxnClient.MultiReadResultMsg(txn.getBatchReadValues()), getSelf());
+			return;
+		}
+		for (Map.Entry<Integer, List<DataOperation>> batch : batches.entrySet()) {
+			ActorRef replica = getReplica(txn, batch.getKey());
+			if (replica != null) {
+				replica.tell(new Coordinator.MultiReadMsg(txn, batch.getValue()), getSelf());
+				continue;
+			}
+			txn.addParticipant(batch.getKey());
+			servers.get(batch.getKey()).tell(new Coordinator.MultiReadMsg(txn, batch.getValue()), getSelf());
+		}
+	}
+
+	private void OnMultiReadResultMsg(Coordinator.MultiReadResultMsg msg) {
+		Txn txn = msg.txn;
+		readRoundTrip.record(System.nanoTime() - msg.sentNanos);
+		clock = Math.max(clock, msg.clock);
+		if (!msg.snapshot)
+			txn.setSnapshotIntact(false);
+
+		log.debug("coordinator" + coordinatorId + "<--[READ(" + msg.dataoperations.size() + " items)]--server"
+				+ msg.serverId);
+
+		Map<Integer, Integer> values = new HashMap<Integer, Integer>();
+		for (DataOperation dataoperation : msg.dataoperations) {
+			values.put(dataoperation.getKey(), dataoperation.getDataItem().getValue());
+			if (msg.replica)
+				txn.addReplicaRead(dataoperation.getKey(), dataoperation.getDataItem());
+		}
+		if (txn.addReadBatch(values)) {
+			// Send all the READ results to the client
+			clients.get(txn.getClientId()).tell(new TxnClient.MultiReadResultMsg(txn.getBatchReadValues()),
+					getSelf());
+		}
+	}
+
+	private void OnMultiWriteMsg(TxnClient.MultiWriteMsg msg) {
+		Integer clientId = msg.clientId;
+
+		log.debug("coordinator" + coordinatorId + "<--[WRITE" + msg.values + "]--client" + clientId);
+
+		// Retrieve the transaction
+		Txn txn = getTxnByClientId(clientId);
+		List<DataOperation> dataoperations = transactions.get(txn);
+		// Group the WRITE operations by server, one batch per server
+		Map<Integer, List<DataOperation>> batches = new HashMap<Integer, List<DataOperation>>();
+		for (Map.Entry<Integer, Integer> write : msg.values.entrySet()) {
+			DataOperation dataOperation = new DataOperation(DataOperation.Type.WRITE, write.getKey(),
+					new DataItem(null, write.getValue()));
+			dataoperations.add(dataOperation);
+			if (config.deferredWrites) {
+				// The WRITE will be sent with the vote request
+				txn.bufferWrite(write.getKey(), write.getValue());
+				continue;
+			}
+			batches.computeIfAbsent(getServerIdByKey(write.getKey()), k -> new ArrayList<DataOperation>())
+					.add(dataOperation);
+		}
+		for (Map.Entry<Integer, List<DataOperation>> batch : batches.entrySet()) {
+			txn.addParticipant(batch.getKey());
+			servers.get(batch.getKey()).tell(new Coordinator.MultiWriteMsg(txn, batch.getValue()), getSelf());
+		}
 	}
 
 	/*
 	 * Given a transaction, return the set of servers involved in its operations
+	 * The servers are recorded when the operations are sent to them, since the routing of the keys
+	 * may change during the transaction (a server that received an operation must vote, even if the key moved)
 	 * 
 	 * @param txn
 	 * @return
 	 */
 	private Set<Integer> getServersId(Txn txn) {
-		List<DataOperation> dataoperations = transactions.get(txn);
-		if (dataoperations == null) {
-			// No data operation in the transaction, return an empty set
-			return new HashSet<Integer>();
-		}
-		Set<Integer> keys = new HashSet<Integer>();
-		// Retrieve the IDs of the items involved in the data operations
-		for (DataOperation dataOperation : dataoperations) {
-			keys.add(dataOperation.getKey());
-		}
-		Set<Integer> serverIds = new HashSet<Integer>();
-		// From the keys, retrieve the IDs of the servers involved in the transaction
-		for (Integer key : keys) {
-			serverIds.add(getServerIdByKey(key));
-			
+		return txn.getParticipants();
+	}
+
+	/*
+	 * Retrieve the final WRITEs of a transaction buffered for a server (deferredWrites mode)
+	 * 
+	 * @param txn, serverId
+	 * @return
+	 */
+	private List<DataOperation> getBufferedWrites(Txn txn, Integer serverId) {
+		List<DataOperation> writes = new ArrayList<DataOperation>();
+		for (Map.Entry<Integer, Integer> write : txn.getWriteBuffer().entrySet()) {
+			if (getServerIdByKey(write.getKey()).equals(serverId))
+				writes.add(new DataOperation(DataOperation.Type.WRITE, write.getKey(), new DataItem(null, write.getValue())));
 		}
-		return serverIds;
+		return writes;
 	}
 
-	private void OnTxnVoteMsg(Server.TxnVoteMsg msg) throws InterruptedException {
-		Txn txn = msg.txn;
+	/*
+	 * Retrieve the READs of a transaction served by the replicas of a server, to be validated by the server
+	 * 
+	 * @param txn, serverId
+	 * @return
+	 */
+	private List<DataOperation> getReplicaReads(Txn txn, Integer serverId) {
+		List<DataOperation> reads = new ArrayList<DataOperation>();
+		for (Map.Entry<Integer, DataItem> read : txn.getReplicaReads().entrySet()) {
+			if (getServerIdByKey(read.getKey()).equals(serverId))
+				reads.add(new DataOperation(DataOperation.Type.READ, read.getKey(), read.getValue()));
+		}
+		return reads;
+	}
+
+	/*
+	 * Check if a transaction has no WRITE operation
+	 * 
+	 * @param txn
+	 * @return
+	 */
+	private boolean isReadOnly(Txn txn) {
+		for (DataOperation dataOperation : transactions.get(txn)) {
+			if (dataOperation.getType() == DataOperation.Type.WRITE)
+				return false;
+		}
+		return true;
+	}
+
+	private void OnTxnVoteMsg(Server.TxnVoteMsg msg) {
+		// Retrieve the coordinator copy of the transaction, which collects the votes
+		Txn txn = getTxnByClientId(msg.txn.getClientId());
+		if (txn == null || !txn.equals(msg.txn)) {
+			log.debug("coordinator" + coordinatorId + ": vote for a terminated transaction, ignore");
+			return;
+		}
 		Boolean vote = msg.vote;
 		Integer clientId = txn.getClientId();
 		
 		txn.setVotesCollected(txn.getVotesCollected() + 1);
 
+		if (txn.isReadOnlyValidation()) {
+			// The servers already dropped their private workspaces, there is no decision to send
+			if (txn.getVotesCollected() == getServersId(txn).size())
+				voteCollection.record(System.nanoTime() - txn.getVoteStartNanos());
+			if (!vote || txn.getVotesCollected() == getServersId(txn).size()) {
+				clients.get(clientId).tell(new TxnResultMsg(vote), getSelf());
+				removeTxn(txn);
+			}
+			return;
+		}
+
 		Set<Integer> serverIds = getServersId(txn);
 		if (vote) {
 			// Increase the number of votes for "COMMIT"
 			txn.setVotes(txn.getVotes() + 1);
+			txn.setCommitTs(Math.max(txn.getCommitTs(), msg.prepareTs));
+			clock = Math.max(clock, msg.prepareTs);
 			if (txn.getVotes() == serverIds.size()) {
-				// Everybody voted COMMIT
-				for (Integer serverId : serverIds) {
-					// Tell all servers to COMMIT
-					servers.get(serverId).tell(new Coordinator.TxnVoteResultMsg(txn, true), getSelf());
-				}
-				// Inform the client of the successful transaction
-				clients.get(clientId).tell(new TxnResultMsg(true), getSelf());
+				// Everybody voted COMMIT: the decision is logged, then sent to the servers and the client
+				SendCommit(txn);
 				// Remove the transaction
-				transactions.remove(txn);
+				removeTxn(txn);
 			}
 		} else {
 			// ABORT vote, send ABORT result to all the servers
@@ -292,46 +947,129 @@ public class Coordinator extends AbstractActor {
 		}
 		if (txn.getVotesCollected() == serverIds.size()) {
 			// When all votes are collected, remove the transaction
-			transactions.remove(txn);
+			voteCollection.record(System.nanoTime() - txn.getVoteStartNanos());
+			removeTxn(txn);
+		}
+	}
+
+	private void OnTxnOutcomeMsg(Server.TxnOutcomeMsg msg) {
+		Txn txn = getTxnByClientId(msg.txn.getClientId());
+		if (txn == null || !txn.equals(msg.txn)) {
+			log.debug("coordinator" + coordinatorId + ": outcome of a terminated transaction, ignore");
+			return;
 		}
+		log.debug("coordinator" + coordinatorId + "<--[ONE_PHASE_COMMIT=" + msg.commit + "]--server" + msg.serverId);
+		// Inform the client of the outcome decided by the server
+		clients.get(txn.getClientId()).tell(new TxnResultMsg(msg.commit), getSelf());
+		removeTxn(txn);
 	}
 
-	private void OnTxnEndMsg(TxnEndMsg msg) throws InterruptedException {
+	private void OnTxnEndMsg(TxnEndMsg msg) {
 		Integer clientId = msg.clientId;
 		Boolean commit = msg.commit;
 
 		log.debug("coordinator" + coordinatorId + "<--[TXN_END=" + commit + "]--client" + clientId);
 
 		// Retrieve the transaction
-		Txn txn = new Txn(coordinatorId, clientId);
+		Txn txn = getTxnByClientId(clientId);
+		if (txn == null) {
+			log.debug("coordinator" + coordinatorId + ": client" + clientId + " has no ongoing transaction, ignore");
+			return;
+		}
+		boolean readOnly = commit && isReadOnly(txn);
+		// READs served by the replicas are validated by the servers, unless the transaction only read a whole snapshot
+		boolean validateReplicaReads = commit && !(readOnly && config.multiVersion && txn.isSnapshotIntact());
+		if (commit) {
+			// The servers of the WRITEs kept until now (deferredWrites mode) will receive them with the vote request
+			for (Integer key : txn.getWriteBuffer().keySet())
+				txn.addParticipant(getServerIdByKey(key));
+		}
+		if (validateReplicaReads) {
+			for (Integer key : txn.getReplicaReads().keySet())
+				txn.addParticipant(getServerIdByKey(key));
+		}
 		Set<Integer> serverIds = getServersId(txn);
+		if (commit && config.validator == Validator.Type.TIMESTAMP) {
+			// The servers validate the transaction at this position of the commit order
+			txn.setOrderTs(++clock);
+		}
 
-		if (commit == true) {
+		if (serverIds.isEmpty()) {
+			// No server has a private workspace of the transaction (e.g. every READ served by a replica
+			// from the snapshot), nothing to validate
+			removeTxn(txn);
+			getSender().tell(new TxnResultMsg(commit), getSelf());
+		} else if (readOnly && config.readOnlyFastPath) {
+			if (config.multiVersion && txn.isSnapshotIntact()) {
+				// Every read came from the same snapshot: the transaction is serializable at its
+				// snapshot and commits right away, the servers only drop their private workspaces
+				for (Integer serverId : serverIds) {
+					servers.get(serverId).tell(new Coordinator.TxnVoteResultMsg(txn, true), getSelf());
+				}
+				removeTxn(txn);
+				getSender().tell(new TxnResultMsg(true), getSelf());
+			} else {
+				// A single validation round without locks, the votes decide the outcome
+				txn.setReadOnlyValidation(true);
+				txn.setVoteStartNanos(System.nanoTime());
+				for (Integer serverId : serverIds) {
+					servers.get(serverId).tell(new Coordinator.TxnValidateReadOnlyMsg(txn, getReplicaReads(txn, serverId)),
+							getSelf());
+				}
+			}
+		} else if (commit && config.onePhaseCommit && serverIds.size() == 1) {
+			// A single participant decides alone: validation and commit in one round trip
+			for (Integer serverId : serverIds) {
+				servers.get(serverId).tell(new Coordinator.TxnOnePhaseCommitMsg(txn, getBufferedWrites(txn, serverId),
+						validateReplicaReads ? getReplicaReads(txn, serverId) : Collections.<DataOperation>emptyList()),
+						getSelf());
+			}
+		} else if (commit == true) {
 			// The client wants to commit, ask a vote to each server involved in the
 			// transaction
+			txn.setVoteStartNanos(System.nanoTime());
 			for (Integer serverId : serverIds) {
-				servers.get(serverId).tell(new Coordinator.TxnAskVoteMsg(txn), getSelf());
+				servers.get(serverId).tell(new Coordinator.TxnAskVoteMsg(txn, readOnly, getBufferedWrites(txn, serverId),
+						validateReplicaReads ? getReplicaReads(txn, serverId) : Collections.<DataOperation>emptyList()),
+						getSelf());
 			}
 		} else {
 			// The client wants to abort, tell to each server involved in the transaction to
-			// abort
+			// abort (only the servers that received some operation have a private workspace)
+			// No need to wait: links are FIFO and the next transaction of the client has a new id,
+			// so its operations can't reach the private workspace of this one
 			for (Integer serverId : serverIds) {
 				servers.get(serverId).tell(new Coordinator.TxnVoteResultMsg(txn, false), getSelf());
 			}
 			
-			Thread.sleep(300);
 			//Remove the transaction
-			transactions.remove(txn);
+			removeTxn(txn);
 			getSender().tell(new TxnResultMsg(commit), getSelf());
 		}
 	}
 
+	@Override
+	public void postStop() throws Exception {
+		if (decisionLog != null)
+			decisionLog.close();
+		super.postStop();
+	}
+
 	@Override
 	public Receive createReceive() {
 		return receiveBuilder().match(Coordinator.WelcomeMsg.class, this::onWelcomeMsg)
+				.match(Coordinator.RoutingUpdateMsg.class, this::OnRoutingUpdateMsg)
 				.match(TxnClient.TxnBeginMsg.class, this::OnTxnBeginMsg).match(TxnClient.ReadMsg.class, this::OnReadMsg)
 				.match(Coordinator.ReadResultMsg.class, this::OnReadResultMsg)
-				.match(Server.TxnVoteMsg.class, this::OnTxnVoteMsg).match(TxnClient.WriteMsg.class, this::OnWriteMsg)
+				.match(TxnClient.MultiReadMsg.class, this::OnMultiReadMsg)
+				.match(Coordinator.MultiReadResultMsg.class, this::OnMultiReadResultMsg)
+				.match(TxnClient.MultiWriteMsg.class, this::OnMultiWriteMsg)
+				.match(Server.TxnVoteMsg.class, this::OnTxnVoteMsg)
+				.match(Server.TxnOutcomeMsg.class, this::OnTxnOutcomeMsg)
+				.match(Server.DecisionRequestMsg.class, this::OnDecisionRequestMsg)
+				.match(Server.DecisionAckMsg.class, this::OnDecisionAckMsg)
+				.match(RotateTickMsg.class, this::OnRotateTickMsg).match(SyncTickMsg.class, this::OnSyncTickMsg)
+				.match(FlushMsg.class, this::OnFlushMsg).match(TxnClient.WriteMsg.class, this::OnWriteMsg)
 				.match(TxnClient.TxnEndMsg.class, this::OnTxnEndMsg).build();
 	}
 
@@ -0,0 +1,80 @@
+package it.unitn.ds1;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import scala.Option;
+
+/*
+ * Unbounded mailbox that keeps the number of messages waiting, readable in constant time
+ * (the default mailbox counts them by walking its queue)
+ *
+ * Enabled with Props.withMailbox(CountingMailbox.ID), the mailbox is declared in application.conf
+ */
+public class CountingMailbox implements MailboxType, ProducesMessageQueue<CountingMailbox.CountingMessageQueue> {
+	public static final String ID = "counting-mailbox";
+
+	// queue of each actor using the mailbox, until the actor stops
+	private static final Map<ActorRef, CountingMessageQueue> queues = new ConcurrentHashMap<ActorRef, CountingMessageQueue>();
+
+	public static class CountingMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+		private final Queue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		public void enqueue(ActorRef receiver, Envelope handle) {
+			queue.offer(handle);
+			size.incrementAndGet();
+		}
+
+		public Envelope dequeue() {
+			Envelope handle = queue.poll();
+			if (handle != null)
+				size.decrementAndGet();
+			return handle;
+		}
+
+		public int numberOfMessages() {
+			return size.get();
+		}
+
+		public boolean hasMessages() {
+			return !queue.isEmpty();
+		}
+
+		public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+			queues.remove(owner);
+			Envelope handle;
+			while ((handle = dequeue()) != null)
+				deadLetters.enqueue(owner, handle);
+		}
+	}
+
+	public CountingMailbox(ActorSystem.Settings settings, Config config) {
+	}
+
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+		CountingMessageQueue queue = new CountingMessageQueue();
+		if (owner.isDefined())
+			queues.put(owner.get(), queue);
+		return queue;
+	}
+
+	/*
+	 * Queue of an actor, null if the actor doesn't use this mailbox
+	 */
+	public static CountingMessageQueue getQueue(ActorRef actor) {
+		return queues.get(actor);
+	}
+}
@@ -2,76 +2,239 @@ package it.unitn.ds1;
 
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.pattern.Patterns;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class CtrlSystem {
-	final static int N_CLIENTS = 10;
-	final static int N_COORDINATORS = 10;
-	final static int N_SERVERS = 10;
-	final static int N_KEY_SERVER = 10;
-	final static int MAX_KEY = N_KEY_SERVER * N_SERVERS - 1;
+	// Default values of the settings, each one can be overridden by a "name=value" argument
+	// or by a properties file given with "config=path"
+	final static int N_CLIENTS = 10; // clients
+	final static int N_COORDINATORS = 10; // coordinators
+	final static int N_SERVERS = 10; // servers
+	final static int N_KEY_SERVER = 10; // keysPerServer, the number of keys is N_SERVERS * N_KEY_SERVER (keys)
+	// Placement of the keys: "range" (contiguous ranges), "hash" or "consistent" (consistent hashing)
+	final static String PARTITIONER = "range"; // partitioner
+	// Points of each server on the ring of the consistent hashing
+	final static int VIRTUAL_NODES = 64; // virtualNodes
+	// Read replicas of each server, they serve the READs of the transactions until their first WRITE
+	final static int N_REPLICAS = 0; // replicas
 	final static int INIT_ITEM_VALUE = 100;
+	// Data store of the servers: "map" (map of DataItems), "array" (primitive arrays) or "offheap" (primitive off-heap buffer)
+	final static String STORE_TYPE = "array"; // store
+	// Servers keep old versions of the items and transactions read from a snapshot
+	final static boolean MULTI_VERSION = false; // multiVersion
+	// Read-only transactions commit without two-phase commit
+	final static boolean READ_ONLY_FAST_PATH = false; // readOnlyFastPath
+	// Transactions touching a single server use one-phase commit
+	final static boolean ONE_PHASE_COMMIT = false; // onePhaseCommit
+	// Coordinators ship the WRITEs to the servers only at commit time
+	final static boolean DEFERRED_WRITES = false; // deferredWrites
+	// Directory of the write-ahead logs of the servers (none if empty)
+	final static String WAL_DIR = ""; // wal
+	// When the logs reach the disk: "commit" (group commit before answering), "interval" (every WAL_SYNC_MS) or "none"
+	final static String WAL_SYNC = "commit"; // walSync
+	final static int WAL_SYNC_MS = 10; // walSyncMs
+	// Period of the checkpoints of the servers with a write-ahead log (0: never)
+	final static int CHECKPOINT_MS = 10000; // checkpointMs
+	// A server that voted COMMIT asks the coordinator for the decision after this delay (0: never)
+	final static int DECISION_TIMEOUT_MS = 0; // decisionTimeoutMs
+	// Lease of the validation locks on the servers, a Txn still holding them after it is aborted (0: no lease)
+	final static int LOCK_LEASE_MS = 0; // lockLeaseMs
+	// Wait of a Txn for an item locked by another one before voting ABORT (0: no wait)
+	final static int LOCK_WAIT_MS = 0; // lockWaitMs
+	// Validation on the servers: "locking" (locks on every item) or "timestamp" (timestamp ordering, no lock on reads)
+	final static String VALIDATOR = "locking"; // validator
+	// Headless benchmark: run for a fixed time instead of waiting for ENTER, then print a report
+	final static boolean HEADLESS = false; // headless
+	final static int WARMUP_SECONDS = 5; // warmup
+	final static int DURATION_SECONDS = 30; // duration
+	// File where the benchmark report is also written (none if empty)
+	final static String REPORT_FILE = ""; // report
+	// Key ranges moved while the system runs, "fromKey-toKey:serverId" separated by commas (toKey excluded)
+	final static String MIGRATIONS = ""; // migrate
+	// Delay before the first migration, the next ones start when the previous one is over
+	final static int MIGRATE_AFTER_SECONDS = 5; // migrateAfter
 
 	private static final Logger log = LogManager.getLogger(CtrlSystem.class);
 
-	public static void main(String[] args) throws InterruptedException {
+	/*
+	 * Create the data store of a server for the given sorted keys
+	 */
+	private static PartitionStore createPartitionStore(String storeType, int[] keys) {
+		switch (storeType) {
+		case "array":
+			return new ArrayPartitionStore(keys, 0, INIT_ITEM_VALUE);
+		case "offheap":
+			return new OffHeapPartitionStore(keys, 0, INIT_ITEM_VALUE);
+		default:
+			HashMap<Integer, DataItem> datastore = new HashMap<Integer, DataItem>();
+			for (int k : keys) {
+				datastore.put(k, new DataItem(0, INIT_ITEM_VALUE));
+			}
+			return new MapPartitionStore(datastore);
+		}
+	}
+
+	/*
+	 * Read the settings from the arguments ("name=value"), after the properties file given with "config=path"
+	 */
+	private static Properties parseSettings(String[] args) throws IOException {
+		Properties settings = new Properties();
+		for (String arg : args) {
+			if (arg.startsWith("config=")) {
+				try (Reader reader = Files.newBufferedReader(Paths.get(arg.substring("config=".length())))) {
+					settings.load(reader);
+				}
+			}
+		}
+		for (String arg : args) {
+			int sep = arg.indexOf('=');
+			if (sep <= 0)
+				throw new IllegalArgumentException("Expected name=value, got " + arg);
+			settings.setProperty(arg.substring(0, sep).trim(), arg.substring(sep + 1).trim());
+		}
+		return settings;
+	}
+
+	private static int getInt(Properties settings, String name, int defaultValue) {
+		return Integer.parseInt(settings.getProperty(name, Integer.toString(defaultValue)));
+	}
+
+	private static boolean getBoolean(Properties settings, String name, boolean defaultValue) {
+		return Boolean.parseBoolean(settings.getProperty(name, Boolean.toString(defaultValue)));
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+		Properties settings = parseSettings(args);
+		final int nClients = getInt(settings, "clients", N_CLIENTS);
+		final int nCoordinators = getInt(settings, "coordinators", N_COORDINATORS);
+		final int nServers = getInt(settings, "servers", N_SERVERS);
+		final int nKeyServer = getInt(settings, "keysPerServer", N_KEY_SERVER);
+		final int nKeys = getInt(settings, "keys", nKeyServer * nServers);
+		final int nReplicas = getInt(settings, "replicas", N_REPLICAS);
+		final int maxKey = nKeys - 1;
+		final Partitioner partitioner = Partitioner.create(settings.getProperty("partitioner", PARTITIONER), nKeys,
+				nServers, getInt(settings, "virtualNodes", VIRTUAL_NODES));
+		final String storeType = settings.getProperty("store", STORE_TYPE);
+
 		// Create an actor system named "ctrlakka"
 		final ActorSystem system = ActorSystem.create("ctrlakka");
 
+		// Options of the transaction protocol
+		SystemConfig config = new SystemConfig();
+		config.multiVersion = getBoolean(settings, "multiVersion", MULTI_VERSION);
+		config.readOnlyFastPath = getBoolean(settings, "readOnlyFastPath", READ_ONLY_FAST_PATH);
+		config.onePhaseCommit = getBoolean(settings, "onePhaseCommit", ONE_PHASE_COMMIT);
+		config.deferredWrites = getBoolean(settings, "deferredWrites", DEFERRED_WRITES);
+		String walDir = settings.getProperty("wal", WAL_DIR);
+		config.walDir = walDir.isEmpty() ? null : walDir;
+		config.walSync = WriteAheadLog.SyncPolicy.valueOf(settings.getProperty("walSync", WAL_SYNC).toUpperCase(Locale.ROOT));
+		config.walSyncMs = getInt(settings, "walSyncMs", WAL_SYNC_MS);
+		config.checkpointMs = getInt(settings, "checkpointMs", CHECKPOINT_MS);
+		config.decisionTimeoutMs = getInt(settings, "decisionTimeoutMs", DECISION_TIMEOUT_MS);
+		config.lockLeaseMs = getInt(settings, "lockLeaseMs", LOCK_LEASE_MS);
+		config.lockWaitMs = getInt(settings, "lockWaitMs", LOCK_WAIT_MS);
+		config.validator = Validator.Type.valueOf(settings.getProperty("validator", VALIDATOR).toUpperCase(Locale.ROOT));
+		if (config.validator == Validator.Type.TIMESTAMP && (config.multiVersion || config.readOnlyFastPath)) {
+			// snapshots and the read-only round commit without the order timestamp
+			throw new IllegalArgumentException("validator=timestamp works without multiVersion and readOnlyFastPath");
+		}
+
 		// Create client actors
 		Map<Integer, ActorRef> clients = new HashMap<Integer, ActorRef>();
-		for (int i = 0; i < N_CLIENTS; i++) {
+		for (int i = 0; i < nClients; i++) {
 			log.debug("Client " + i + " created");
 			clients.put(i, system.actorOf(TxnClient.props(i), "client" + i));
 		}
 
-		// Create coordinator actors
+		// Create coordinator actors (their latency histograms and mailbox depth are exposed over JMX)
 		List<ActorRef> coordinators = new ArrayList<ActorRef>();
-		for (int i = 0; i < N_COORDINATORS; i++) {
+		for (int i = 0; i < nCoordinators; i++) {
 			log.debug("Coordinator " + i + " created");
-			coordinators.add(system.actorOf(Coordinator.props(i), "coordinator" + i));
+			coordinators.add(system.actorOf(Coordinator.props(i).withMailbox(CountingMailbox.ID), "coordinator" + i));
 		}
 
-		// Create multiple Server actors
-		Integer k = 0;
+		// Create multiple Server actors, each one stores the keys given by the partitioner, with its replicas
 		Map<Integer, ActorRef> servers = new HashMap<Integer, ActorRef>();
-		for (int i = 0; i < N_SERVERS; i++) {
-			log.debug("Server " + i + " created");
-			HashMap<Integer, DataItem> datastore = new HashMap<Integer, DataItem>();
-			for (int j = 0; j < N_KEY_SERVER; j++) {
-				DataItem dataItem = new DataItem(0,INIT_ITEM_VALUE);
-				dataItem.setLock(null);
-				datastore.put(k++, dataItem);
+		Map<Integer, List<ActorRef>> replicas = new HashMap<Integer, List<ActorRef>>();
+		for (int i = 0; i < nServers; i++) {
+			int[] keys = partitioner.getKeys(i);
+			if (config.walDir != null && Files.exists(Server.getCheckpointPath(config.walDir, i))) {
+				// the server restores its partition from the checkpoint
+				keys = new int[0];
+			}
+			List<ActorRef> serverReplicas = new ArrayList<ActorRef>();
+			for (int r = 0; r < nReplicas; r++) {
+				serverReplicas.add(system.actorOf(Replica.props(i * nReplicas + r, i,
+						createPartitionStore(storeType, keys), config).withMailbox(CountingMailbox.ID),
+						"replica" + i + "-" + r));
 			}
-			servers.put(i, system.actorOf(Server.props(i, datastore), "server" + i));
+			PartitionStore datastore = createPartitionStore(storeType, keys);
+			log.debug("Server " + i + " created with " + datastore.size() + " keys and " + nReplicas + " replicas");
+			ActorRef server = system.actorOf(Server.props(i, datastore, config, serverReplicas)
+					.withMailbox(CountingMailbox.ID), "server" + i);
+			for (ActorRef replica : serverReplicas)
+				replica.tell(new Replica.WelcomeMsg(server), null);
+			servers.put(i, server);
+			replicas.put(i, serverReplicas);
 		}
 		
 		// The consistency tester is used to check if the distributed data store has a consistent state	
 		ActorRef consistencyTester = system.actorOf(ConsistencyTester.props(0), "consistencyTester");
 
-		// Send welcome messages to clients, coordinators and the consistency tester
-		TxnClient.WelcomeMsg wClient = new TxnClient.WelcomeMsg(MAX_KEY, coordinators);
-		for (Map.Entry<Integer, ActorRef> entry : clients.entrySet()) {
-			entry.getValue().tell(wClient, null);
-		}
-		Coordinator.WelcomeMsg wCoordinator = new Coordinator.WelcomeMsg(clients, servers, N_KEY_SERVER);
+		// Send welcome messages to coordinators, servers, clients and the consistency tester
+		// (coordinators first, they must know the configuration before the first TXN_BEGIN
+		// and have read their decision log before the servers ask for the decisions in doubt)
+		Coordinator.WelcomeMsg wCoordinator = new Coordinator.WelcomeMsg(clients, servers, replicas, partitioner,
+				config);
 		for (ActorRef peer : coordinators) {
 			peer.tell(wCoordinator, null);
 		}
+		Server.WelcomeMsg wServer = new Server.WelcomeMsg(coordinators);
+		for (ActorRef server : servers.values()) {
+			server.tell(wServer, null);
+		}
+		TxnClient.WelcomeMsg wClient = new TxnClient.WelcomeMsg(maxKey, coordinators);
+		for (Map.Entry<Integer, ActorRef> entry : clients.entrySet()) {
+			entry.getValue().tell(wClient, null);
+		}
 		
 		consistencyTester.tell(new ConsistencyTester.WelcomeMsg(servers), null);	
+
+		String migrations = settings.getProperty("migrate", MIGRATIONS);
+		if (!migrations.isEmpty()) {
+			int migrateAfter = getInt(settings, "migrateAfter", MIGRATE_AFTER_SECONDS);
+			Thread migrationThread = new Thread(
+					() -> runMigrations(migrations, migrateAfter, partitioner, servers, coordinators), "migrations");
+			migrationThread.setDaemon(true);
+			migrationThread.start();
+		}
 		
-		log.info("Press ENTER to exit");
 		try {
-			System.in.read();
+			if (getBoolean(settings, "headless", HEADLESS)) {
+				runBenchmark(settings, clients, nCoordinators, nServers, nKeys);
+			} else {
+				log.info("Press ENTER to exit");
+				System.in.read();
+			}
 		} catch (IOException ioe) {
 		} finally {
 			// Stop all the clients
@@ -88,4 +251,87 @@ public class CtrlSystem {
 		
 	}
 
+	/*
+	 * Move the key ranges of the setting "migrate" one after the other, while the clients run
+	 */
+	private static void runMigrations(String migrations, int migrateAfter, Partitioner partitioner,
+			Map<Integer, ActorRef> servers, List<ActorRef> coordinators) {
+		try {
+			Thread.sleep(TimeUnit.SECONDS.toMillis(migrateAfter));
+			long migrationId = 0;
+			for (String migration : migrations.split(",")) {
+				String[] range = migration.trim().split("[-:]");
+				int fromKey = Integer.parseInt(range[0]);
+				int toKey = Integer.parseInt(range[1]);
+				int targetId = Integer.parseInt(range[2]);
+				// the whole range must be stored by a single server
+				int sourceId = partitioner.getServerId(fromKey);
+				for (int key = fromKey; key < toKey; key++) {
+					if (partitioner.getServerId(key) != sourceId)
+						throw new IllegalArgumentException("Keys [" + fromKey + ", " + toKey + ") are on several servers");
+				}
+				migrationId++;
+				Server.MigrationDoneMsg done = (Server.MigrationDoneMsg) Patterns
+						.ask(servers.get(sourceId), new Server.MigrateRangeMsg(fromKey, toKey, targetId,
+								servers.get(targetId), coordinators, migrationId), Duration.ofSeconds(60))
+						.toCompletableFuture().join();
+				log.info("Moved " + done.keys + " keys [" + fromKey + ", " + toKey + ") from server" + sourceId
+						+ " to server" + targetId);
+				partitioner = RoutingPartitioner.withMove(partitioner, fromKey, toKey, targetId, migrationId);
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/*
+	 * Let the clients run for the warm-up, then measure them for the given duration
+	 * The report (one JSON line) is printed on the standard output and written to the report file, if any
+	 */
+	private static void runBenchmark(Properties settings, Map<Integer, ActorRef> clients, int nCoordinators,
+			int nServers, int nKeys) throws InterruptedException, IOException {
+		int warmupSeconds = getInt(settings, "warmup", WARMUP_SECONDS);
+		int durationSeconds = getInt(settings, "duration", DURATION_SECONDS);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+		for (ActorRef client : clients.values()) {
+			client.tell(new TxnClient.ResetStatsMsg(), null);
+		}
+		long start = System.nanoTime();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+
+		// Collect the measurements of every client
+		List<CompletableFuture<Object>> replies = new ArrayList<CompletableFuture<Object>>();
+		for (ActorRef client : clients.values()) {
+			replies.add(Patterns.ask(client, new TxnClient.StatsRequestMsg(), Duration.ofSeconds(10)).toCompletableFuture());
+		}
+		long elapsed = System.nanoTime() - start;
+		long committed = 0, aborted = 0, clientAborted = 0;
+		LatencyHistogram commitLatency = new LatencyHistogram();
+		for (CompletableFuture<Object> reply : replies) {
+			TxnClient.StatsMsg stats = (TxnClient.StatsMsg) reply.join();
+			committed += stats.committed;
+			aborted += stats.aborted;
+			clientAborted += stats.clientAborted;
+			commitLatency.add(stats.commitLatency);
+		}
+
+		double seconds = elapsed / 1e9;
+		// the aborts asked by the clients are not conflicts, they stay out of the abort rate
+		long finished = committed + aborted;
+		String report = String.format(Locale.ROOT,
+				"{\"clients\":%d,\"coordinators\":%d,\"servers\":%d,\"keys\":%d,\"partitioner\":\"%s\",\"durationSec\":%.3f,"
+						+ "\"committed\":%d,\"systemAborted\":%d,\"clientAborted\":%d,\"throughputTxnPerSec\":%.1f,"
+						+ "\"systemAbortRate\":%.4f,"
+						+ "\"commitLatencyUs\":{\"mean\":%.1f,\"p50\":%.1f,\"p99\":%.1f,\"p999\":%.1f,\"max\":%.1f}}",
+				clients.size(), nCoordinators, nServers, nKeys, settings.getProperty("partitioner", PARTITIONER), seconds, committed, aborted, clientAborted, committed / seconds,
+				finished == 0 ? 0.0 : (double) aborted / finished, commitLatency.getMean() / 1e3,
+				commitLatency.getValueAtQuantile(0.5) / 1e3, commitLatency.getValueAtQuantile(0.99) / 1e3,
+				commitLatency.getValueAtQuantile(0.999) / 1e3, commitLatency.getMax() / 1e3);
+		System.out.println(report);
+		String reportFile = settings.getProperty("report", REPORT_FILE);
+		if (!reportFile.isEmpty()) {
+			Files.write(Paths.get(reportFile), (report + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
 }
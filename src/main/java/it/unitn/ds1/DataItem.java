@@ -3,7 +3,6 @@ package it.unitn.ds1;
 public class DataItem {
 	private Integer version;
 	private Integer value;
-	private Integer lock;
 
 	public DataItem(Integer version, Integer value) {
 		this.version = version;
@@ -27,14 +26,6 @@ public class DataItem {
 		this.value = value;
 	}
 
-	public Integer getLock() {
-		return lock;
-	}
-
-	public void setLock(Integer lock) {
-		this.lock = lock;
-	}
-
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,29 @@
+package it.unitn.ds1;
+
+/*
+ * Keys spread by their hash: consecutive or clustered keys end up on different servers
+ */
+public class HashPartitioner implements Partitioner {
+	private final int numKeys;
+	private final int numServers;
+
+	public HashPartitioner(int numKeys, int numServers) {
+		this.numKeys = numKeys;
+		this.numServers = numServers;
+	}
+
+	@Override
+	public int getServerId(int key) {
+		return Math.floorMod(Partitioner.mix(key), numServers);
+	}
+
+	@Override
+	public int getNumServers() {
+		return numServers;
+	}
+
+	@Override
+	public int getNumKeys() {
+		return numKeys;
+	}
+}
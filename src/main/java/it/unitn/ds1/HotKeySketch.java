@@ -0,0 +1,61 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+
+/*
+ * Approximate top-K of the most frequent keys in bounded memory, with the Space-Saving algorithm:
+ * K counters, a key without a counter takes the one with the smallest count and inherits that count as its error
+ * (a key seen more than N/K times out of N is always kept)
+ *
+ * Recording is allocation-free, the lock is only contended when the top keys are read (e.g. through JMX)
+ */
+public class HotKeySketch {
+	private final int[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private int size;
+
+	public HotKeySketch(int capacity) {
+		this.keys = new int[capacity];
+		this.counts = new long[capacity];
+		this.errors = new long[capacity];
+		this.size = 0;
+	}
+
+	public synchronized void record(int key) {
+		int min = 0;
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key) {
+				counts[i]++;
+				return;
+			}
+			if (counts[i] < counts[min])
+				min = i;
+		}
+		if (size < keys.length) {
+			keys[size] = key;
+			counts[size] = 1;
+			errors[size] = 0;
+			size++;
+			return;
+		}
+		// replace the least frequent key, its count is an upper bound of the occurrences missed
+		keys[min] = key;
+		errors[min] = counts[min];
+		counts[min]++;
+	}
+
+	/*
+	 * Keys from the most frequent: "key=count" where count may overestimate by at most "error"
+	 */
+	public synchronized String[] getTopKeys() {
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+		String[] topKeys = new String[size];
+		for (int i = 0; i < size; i++)
+			topKeys[i] = keys[order[i]] + "=" + counts[order[i]] + " (error " + errors[order[i]] + ")";
+		return topKeys;
+	}
+}
@@ -0,0 +1,139 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of non-negative values (latencies in nanoseconds) with log-linear buckets, like HdrHistogram:
+ * values below 128 have their own bucket, larger values keep their 7 most significant bits
+ * (relative error below 1.6%)
+ * 
+ * Recording is allocation-free. It is done by a single thread (the actor owning the histogram),
+ * other threads can read it at any time, e.g. through JMX.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean, Serializable {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final int N_BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private volatile long totalCount;
+	private volatile long totalSum;
+	private volatile long maxValue;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(N_BUCKETS);
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(value, 0);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int top = (int) (value >>> shift);
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (top - HALF_SUB_BUCKETS);
+	}
+
+	// Middle of the range of values of a bucket
+	static long bucketValue(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long top = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return (top << shift) + (1L << (shift - 1));
+	}
+
+	/*
+	 * Record a value, must be called by the owner thread only
+	 */
+	public void record(long value) {
+		int index = bucketIndex(value);
+		counts.lazySet(index, counts.get(index) + 1);
+		totalSum += value;
+		if (value > maxValue)
+			maxValue = value;
+		totalCount++;
+	}
+
+	public long getCount() {
+		return totalCount;
+	}
+
+	public long getMax() {
+		return maxValue;
+	}
+
+	public double getMean() {
+		long count = totalCount;
+		return count == 0 ? 0 : (double) totalSum / count;
+	}
+
+	/*
+	 * Value below which the given fraction of the recorded values fall
+	 * 
+	 * @param quantile between 0 and 1
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long count = 0;
+		for (int i = 0; i < N_BUCKETS; i++)
+			count += counts.get(i);
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < N_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(bucketValue(i), maxValue);
+		}
+		return maxValue;
+	}
+
+	public long getP50() {
+		return getValueAtQuantile(0.5);
+	}
+
+	public long getP90() {
+		return getValueAtQuantile(0.9);
+	}
+
+	public long getP99() {
+		return getValueAtQuantile(0.99);
+	}
+
+	public long getP999() {
+		return getValueAtQuantile(0.999);
+	}
+
+	/*
+	 * Add the values recorded by another histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < N_BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0)
+				counts.lazySet(i, counts.get(i) + c);
+		}
+		totalSum += other.totalSum;
+		totalCount += other.totalCount;
+		if (other.maxValue > maxValue)
+			maxValue = other.maxValue;
+	}
+
+	/*
+	 * Copy of the histogram, to be sent in a message
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; i++)
+			counts.lazySet(i, 0);
+		totalSum = 0;
+		totalCount = 0;
+		maxValue = 0;
+	}
+}
@@ -0,0 +1,20 @@
+package it.unitn.ds1;
+
+/*
+ * JMX view of a LatencyHistogram (values in nanoseconds, or messages for the mailbox depth)
+ */
+public interface LatencyHistogramMBean {
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	long getP50();
+
+	long getP90();
+
+	long getP99();
+
+	long getP999();
+}
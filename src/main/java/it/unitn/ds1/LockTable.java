@@ -0,0 +1,240 @@
+package it.unitn.ds1;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Validation locks of a server, kept apart from the DataItems of the data store
+ * A key is locked exclusively by one Txn (WRITE), or shared by any number of Txns (READ): readers conflict only with writers
+ * Every Txn remembers the keys it holds, so releasing them costs O(keys locked by the Txn)
+ * A Txn may hold its locks under a lease: the server checks the expired leases from its scheduler
+ * A Txn may also wait for a locked key in the queue of the key: the key goes to the first one when it is released
+ * (and to the readers following it, if it is a reader), locked for them. A Txn doesn't pass a writer already waiting,
+ * nor a writer another waiting Txn.
+ */
+public class LockTable {
+	// Owner of each key locked exclusively
+	private final Map<Integer, Txn> owners;
+	// Number of readers of each key locked shared
+	private final Map<Integer, Integer> readers;
+	// Keys locked exclusively by each Txn
+	private final Map<Txn, List<Integer>> heldKeys;
+	// Keys locked shared by each Txn
+	private final Map<Txn, List<Integer>> sharedKeys;
+	// Deadline (System.nanoTime()) of the lease of each Txn, in the order the leases were set:
+	// with a single lease duration it is also the order of the deadlines
+	private final LinkedHashMap<Txn, Long> leases;
+	// Txns waiting for each locked key, in arrival order
+	private final Map<Integer, ArrayDeque<Waiter>> waiters;
+
+	// Txn in the queue of a key, with the mode it asks
+	private static class Waiter {
+		final Txn txn;
+		final boolean exclusive;
+
+		Waiter(Txn txn, boolean exclusive) {
+			this.txn = txn;
+			this.exclusive = exclusive;
+		}
+	}
+
+	public LockTable() {
+		this.owners = new HashMap<Integer, Txn>();
+		this.readers = new HashMap<Integer, Integer>();
+		this.heldKeys = new HashMap<Txn, List<Integer>>();
+		this.sharedKeys = new HashMap<Txn, List<Integer>>();
+		this.leases = new LinkedHashMap<Txn, Long>();
+		this.waiters = new HashMap<Integer, ArrayDeque<Waiter>>();
+	}
+
+	/*
+	 * Lock the key exclusively for the Txn, unless it is already locked by another Txn (in any mode)
+	 * or other Txns wait for it
+	 * 
+	 * @param txn, key
+	 * @return true if the Txn holds the lock
+	 */
+	public boolean tryLock(Txn txn, Integer key) {
+		Txn owner = owners.get(key);
+		if (owner != null)
+			return owner.equals(txn);
+		if (readers.containsKey(key) || (!waiters.isEmpty() && waiters.containsKey(key)))
+			return false;
+		grant(txn, key, true);
+		return true;
+	}
+
+	/*
+	 * Lock the key shared for the Txn, unless it is locked exclusively by another Txn or a writer waits for it
+	 * 
+	 * @param txn, key
+	 * @return true if the Txn holds the lock
+	 */
+	public boolean tryLockShared(Txn txn, Integer key) {
+		Txn owner = owners.get(key);
+		if (owner != null)
+			return owner.equals(txn);
+		if (!waiters.isEmpty() && waiters.containsKey(key))
+			return false;
+		grant(txn, key, false);
+		return true;
+	}
+
+	private void grant(Txn txn, Integer key, boolean exclusive) {
+		if (exclusive) {
+			owners.put(key, txn);
+			addKey(heldKeys, txn, key);
+		} else {
+			Integer count = readers.get(key);
+			readers.put(key, count == null ? 1 : count + 1);
+			addKey(sharedKeys, txn, key);
+		}
+	}
+
+	private static void addKey(Map<Txn, List<Integer>> held, Txn txn, Integer key) {
+		List<Integer> keys = held.get(txn);
+		if (keys == null) {
+			keys = new ArrayList<Integer>(4);
+			held.put(txn, keys);
+		}
+		keys.add(key);
+	}
+
+	/*
+	 * Retrieve the Txn holding the exclusive lock on the key (null if the key is not locked exclusively)
+	 */
+	public Txn getOwner(Integer key) {
+		return owners.get(key);
+	}
+
+	/*
+	 * Check if the key is locked, in any mode
+	 */
+	public boolean isLocked(Integer key) {
+		return owners.containsKey(key) || readers.containsKey(key);
+	}
+
+	/*
+	 * Release every lock held by the Txn
+	 * 
+	 * @param txn
+	 * @return the first Txn waiting for each released key, removed from the queue: it holds the lock of the key
+	 */
+	public List<Txn> releaseAll(Txn txn) {
+		leases.remove(txn);
+		List<Txn> woken = Collections.emptyList();
+		List<Integer> keys = heldKeys.remove(txn);
+		if (keys != null) {
+			for (Integer key : keys) {
+				owners.remove(key);
+				woken = wake(key, woken);
+			}
+		}
+		keys = sharedKeys.remove(txn);
+		if (keys != null) {
+			for (Integer key : keys) {
+				int count = readers.get(key);
+				if (count > 1) {
+					readers.put(key, count - 1);
+				} else {
+					readers.remove(key);
+					woken = wake(key, woken);
+				}
+			}
+		}
+		return woken;
+	}
+
+	// The key is free: lock it for the first Txn of its queue, and for the readers following a reader
+	private List<Txn> wake(Integer key, List<Txn> woken) {
+		ArrayDeque<Waiter> queue = waiters.isEmpty() ? null : waiters.get(key);
+		if (queue == null)
+			return woken;
+		if (woken.isEmpty())
+			woken = new ArrayList<Txn>(2);
+		Waiter first = queue.poll();
+		grant(first.txn, key, first.exclusive);
+		woken.add(first.txn);
+		while (!first.exclusive && !queue.isEmpty() && !queue.peek().exclusive) {
+			Waiter reader = queue.poll();
+			grant(reader.txn, key, false);
+			woken.add(reader.txn);
+		}
+		if (queue.isEmpty())
+			waiters.remove(key);
+		return woken;
+	}
+
+	/*
+	 * Queue the Txn for a key locked by another Txn
+	 * 
+	 * @param key, txn, exclusive the mode asked by the Txn
+	 */
+	public void enqueue(Integer key, Txn txn, boolean exclusive) {
+		ArrayDeque<Waiter> queue = waiters.get(key);
+		if (queue == null) {
+			queue = new ArrayDeque<Waiter>(2);
+			waiters.put(key, queue);
+		}
+		queue.add(new Waiter(txn, exclusive));
+	}
+
+	/*
+	 * Remove the Txn from the queue of the key (it stopped waiting)
+	 * 
+	 * @param key, txn
+	 */
+	public void cancelWait(Integer key, Txn txn) {
+		ArrayDeque<Waiter> queue = waiters.get(key);
+		if (queue == null)
+			return;
+		Iterator<Waiter> it = queue.iterator();
+		while (it.hasNext()) {
+			if (it.next().txn.equals(txn)) {
+				it.remove();
+				break;
+			}
+		}
+		if (queue.isEmpty())
+			waiters.remove(key);
+	}
+
+	/*
+	 * Set (or renew) the lease of the locks of the Txn
+	 * 
+	 * @param txn, deadlineNanos
+	 */
+	public void setLease(Txn txn, long deadlineNanos) {
+		leases.remove(txn);
+		leases.put(txn, deadlineNanos);
+	}
+
+	/*
+	 * Retrieve the Txns whose lease expired, only those are visited
+	 * 
+	 * @param nowNanos
+	 * @return
+	 */
+	public List<Txn> getExpiredLeases(long nowNanos) {
+		List<Txn> expired = new ArrayList<Txn>();
+		Iterator<Map.Entry<Txn, Long>> it = leases.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Txn, Long> lease = it.next();
+			if (lease.getValue() - nowNanos > 0)
+				break;
+			expired.add(lease.getKey());
+		}
+		return expired;
+	}
+
+	// Number of locked keys
+	public int size() {
+		return owners.size() + readers.size();
+	}
+}
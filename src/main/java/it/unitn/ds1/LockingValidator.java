@@ -0,0 +1,25 @@
+package it.unitn.ds1;
+
+import java.util.Map;
+
+/*
+ * Validation under locks: every item of the Txn is locked (shared if only read), then its versions are checked
+ * The locks are held until the decision, no other Txn can overwrite what the Txn read or wrote meanwhile
+ */
+public class LockingValidator implements Validator {
+
+	@Override
+	public LockMode getLockMode(Server.WorkspaceEntry entry) {
+		return entry.getWriteItem() != null ? LockMode.EXCLUSIVE : LockMode.SHARED;
+	}
+
+	@Override
+	public boolean validate(Txn txn, Map<Integer, Server.WorkspaceEntry> entries, PartitionStore datastore,
+			LockTable locks, AbortStats aborts) {
+		for (Map.Entry<Integer, Server.WorkspaceEntry> entry : entries.entrySet()) {
+			if (!Validator.checkVersions(entry.getKey(), entry.getValue(), datastore, aborts))
+				return false;
+		}
+		return true;
+	}
+}
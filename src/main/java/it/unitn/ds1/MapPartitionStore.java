@@ -0,0 +1,89 @@
+package it.unitn.ds1;
+
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Partition store backed by a map of DataItems, works with any set of keys
+ */
+public class MapPartitionStore implements PartitionStore {
+	private final Map<Integer, DataItem> datastore;
+
+	public MapPartitionStore(Map<Integer, DataItem> datastore) {
+		this.datastore = datastore;
+	}
+
+	@Override
+	public boolean contains(int key) {
+		return datastore.containsKey(key);
+	}
+
+	@Override
+	public int getVersion(int key) {
+		return datastore.get(key).getVersion();
+	}
+
+	@Override
+	public int getValue(int key) {
+		return datastore.get(key).getValue();
+	}
+
+	@Override
+	public DataItem get(int key) {
+		DataItem dataItem = datastore.get(key);
+		if (dataItem == null)
+			return null;
+		return new DataItem(dataItem.getVersion(), dataItem.getValue());
+	}
+
+	@Override
+	public void put(int key, int version, int value) {
+		datastore.put(key, new DataItem(version, value));
+	}
+
+	@Override
+	public int size() {
+		return datastore.size();
+	}
+
+	@Override
+	public Map<Integer, DataItem> toMap() {
+		Map<Integer, DataItem> copy = new HashMap<Integer, DataItem>();
+		for (Map.Entry<Integer, DataItem> entry : datastore.entrySet()) {
+			copy.put(entry.getKey(), new DataItem(entry.getValue().getVersion(), entry.getValue().getValue()));
+		}
+		return copy;
+	}
+
+	@Override
+	public PartitionStore rebuild(Map<Integer, DataItem> items) {
+		return new MapPartitionStore(new HashMap<Integer, DataItem>(items));
+	}
+
+	@Override
+	public int[] getKeys() {
+		return ArrayPartitionStore.getSortedKeys(datastore);
+	}
+
+	@Override
+	public long[] copyPackedItems() {
+		int[] keys = getKeys();
+		long[] items = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			DataItem dataItem = datastore.get(keys[i]);
+			items[i] = ArrayPartitionStore.pack(dataItem.getVersion(), dataItem.getValue());
+		}
+		return items;
+	}
+
+	@Override
+	public PartitionStore restore(int[] keys, LongBuffer items) {
+		Map<Integer, DataItem> restored = new HashMap<Integer, DataItem>();
+		for (int i = 0; i < keys.length; i++) {
+			long item = items.get(i);
+			restored.put(keys[i], new DataItem(ArrayPartitionStore.unpackVersion(item), ArrayPartitionStore.unpackValue(item)));
+		}
+		return new MapPartitionStore(restored);
+	}
+}
@@ -0,0 +1,93 @@
+package it.unitn.ds1;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import akka.actor.AbstractActor;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
+
+/*
+ * Actor with latency histograms and other metrics, exposed as JMX MBeans named it.unitn.ds1:type=<type>,id=<id>,name=<metric>
+ *
+ * Every actor records the time spent in its handlers (handlerTime) and the number of messages still
+ * in its mailbox when it takes one (mailboxDepth, only with the CountingMailbox)
+ */
+public abstract class MeteredActor extends AbstractActor {
+	private final String type;
+	private final int id;
+	private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+	private final LatencyHistogram handlerTime;
+	private final LatencyHistogram mailboxDepth;
+	private CountingMailbox.CountingMessageQueue mailbox;
+
+	private static final Logger log = LogManager.getLogger(MeteredActor.class);
+
+	protected MeteredActor(String type, int id) {
+		this.type = type;
+		this.id = id;
+		this.handlerTime = newHistogram("handlerTime");
+		this.mailboxDepth = newHistogram("mailboxDepth");
+	}
+
+	/*
+	 * Create a histogram of the actor, registered when the actor starts
+	 */
+	protected LatencyHistogram newHistogram(String name) {
+		return addMetric(name, new LatencyHistogram());
+	}
+
+	/*
+	 * Add a metric of the actor (a standard MBean), registered when the actor starts
+	 */
+	protected <T> T addMetric(String name, T mbean) {
+		metrics.put(name, mbean);
+		return mbean;
+	}
+
+	private ObjectName getObjectName(String name) throws JMException {
+		return new ObjectName("it.unitn.ds1:type=" + type + ",id=" + id + ",name=" + name);
+	}
+
+	@Override
+	public void preStart() throws Exception {
+		mailbox = CountingMailbox.getQueue(getSelf());
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			try {
+				mbeans.registerMBean(entry.getValue(), getObjectName(entry.getKey()));
+			} catch (JMException e) {
+				log.warn(type + id + ": metric " + entry.getKey() + " not registered: " + e);
+			}
+		}
+	}
+
+	@Override
+	public void postStop() throws Exception {
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		for (String name : metrics.keySet()) {
+			try {
+				mbeans.unregisterMBean(getObjectName(name));
+			} catch (JMException e) {
+				// never registered
+			}
+		}
+	}
+
+	@Override
+	public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+		if (mailbox != null)
+			mailboxDepth.record(mailbox.numberOfMessages());
+		long start = System.nanoTime();
+		super.aroundReceive(receive, msg);
+		handlerTime.record(System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,136 @@
+package it.unitn.ds1;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Same layout as ArrayPartitionStore, kept in a direct buffer outside the Java heap
+ * so that very large partitions are not scanned by the garbage collector
+ */
+public class OffHeapPartitionStore implements PartitionStore {
+	private final int firstKey;
+	// keys of the partition, null if they are contiguous
+	private final int[] keys;
+	private final int size;
+	private final LongBuffer items;
+
+	public OffHeapPartitionStore(int firstKey, int size, int initVersion, int initValue) {
+		this(firstKey, null, size, initVersion, initValue);
+	}
+
+	public OffHeapPartitionStore(int[] keys, int initVersion, int initValue) {
+		this(keys.length == 0 ? 0 : keys[0], ArrayPartitionStore.isContiguous(keys) ? null : keys.clone(),
+				keys.length, initVersion, initValue);
+	}
+
+	private OffHeapPartitionStore(int firstKey, int[] keys, int size, int initVersion, int initValue) {
+		this.firstKey = firstKey;
+		this.keys = keys;
+		this.size = size;
+		this.items = ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+		long item = ArrayPartitionStore.pack(initVersion, initValue);
+		for (int i = 0; i < size; i++)
+			items.put(i, item);
+	}
+
+	private OffHeapPartitionStore(int[] keys, LongBuffer items) {
+		this.firstKey = keys.length == 0 ? 0 : keys[0];
+		this.keys = ArrayPartitionStore.isContiguous(keys) ? null : keys;
+		this.size = keys.length;
+		this.items = ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+		this.items.put(items);
+	}
+
+	public int getFirstKey() {
+		return firstKey;
+	}
+
+	/*
+	 * Position of the key in the items (negative if the key does not belong to the partition)
+	 */
+	private int slot(int key) {
+		if (keys != null)
+			return Arrays.binarySearch(keys, key);
+		int slot = key - firstKey;
+		return slot < size ? slot : -1;
+	}
+
+	@Override
+	public boolean contains(int key) {
+		return slot(key) >= 0;
+	}
+
+	@Override
+	public int getVersion(int key) {
+		return ArrayPartitionStore.unpackVersion(items.get(slot(key)));
+	}
+
+	@Override
+	public int getValue(int key) {
+		return ArrayPartitionStore.unpackValue(items.get(slot(key)));
+	}
+
+	@Override
+	public DataItem get(int key) {
+		int slot = slot(key);
+		if (slot < 0)
+			return null;
+		long item = items.get(slot);
+		return new DataItem(ArrayPartitionStore.unpackVersion(item), ArrayPartitionStore.unpackValue(item));
+	}
+
+	@Override
+	public void put(int key, int version, int value) {
+		items.put(slot(key), ArrayPartitionStore.pack(version, value));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Map<Integer, DataItem> toMap() {
+		Map<Integer, DataItem> copy = new HashMap<Integer, DataItem>();
+		for (int i = 0; i < size; i++) {
+			long item = items.get(i);
+			copy.put(keys == null ? firstKey + i : keys[i],
+					new DataItem(ArrayPartitionStore.unpackVersion(item), ArrayPartitionStore.unpackValue(item)));
+		}
+		return copy;
+	}
+
+	@Override
+	public int[] getKeys() {
+		if (keys != null)
+			return keys.clone();
+		int[] contiguous = new int[size];
+		for (int i = 0; i < size; i++)
+			contiguous[i] = firstKey + i;
+		return contiguous;
+	}
+
+	@Override
+	public long[] copyPackedItems() {
+		long[] copy = new long[size];
+		items.duplicate().get(copy, 0, size);
+		return copy;
+	}
+
+	@Override
+	public PartitionStore restore(int[] keys, LongBuffer items) {
+		return new OffHeapPartitionStore(keys, items);
+	}
+
+	@Override
+	public PartitionStore rebuild(Map<Integer, DataItem> items) {
+		OffHeapPartitionStore store = new OffHeapPartitionStore(ArrayPartitionStore.getSortedKeys(items), 0, 0);
+		for (Map.Entry<Integer, DataItem> entry : items.entrySet())
+			store.put(entry.getKey(), entry.getValue().getVersion(), entry.getValue().getValue());
+		return store;
+	}
+}
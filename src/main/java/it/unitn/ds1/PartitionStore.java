@@ -0,0 +1,61 @@
+package it.unitn.ds1;
+
+import java.nio.LongBuffer;
+import java.util.Map;
+
+/*
+ * Key-value store of the partition owned by a server
+ * Every key holds a version and a value
+ */
+public interface PartitionStore {
+
+	/*
+	 * Check if the key belongs to the partition
+	 */
+	boolean contains(int key);
+
+	int getVersion(int key);
+
+	int getValue(int key);
+
+	/*
+	 * Return a copy of the item stored for the key (null if the key does not belong to the partition)
+	 */
+	DataItem get(int key);
+
+	/*
+	 * Install a new version of the item stored for the key
+	 */
+	void put(int key, int version, int value);
+
+	/*
+	 * Number of keys of the partition
+	 */
+	int size();
+
+	/*
+	 * Copy the content of the partition, used to report it to the consistency tester
+	 */
+	Map<Integer, DataItem> toMap();
+
+	/*
+	 * Create a store of the same kind holding the given items, used when keys move between servers
+	 */
+	PartitionStore rebuild(Map<Integer, DataItem> items);
+
+	/*
+	 * Sorted keys of the partition
+	 */
+	int[] getKeys();
+
+	/*
+	 * Copy the items in the order of getKeys(), version and value packed in a long (ArrayPartitionStore.pack),
+	 * used to write a checkpoint
+	 */
+	long[] copyPackedItems();
+
+	/*
+	 * Create a store of the same kind from a checkpoint: sorted keys and their packed items
+	 */
+	PartitionStore restore(int[] keys, LongBuffer items);
+}
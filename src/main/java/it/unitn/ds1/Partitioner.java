@@ -0,0 +1,65 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+
+/*
+ * Placement of the keys [0, numKeys) on the servers [0, numServers)
+ * Shared by CtrlSystem, which fills the data stores, and by the coordinators, which route the operations
+ */
+public interface Partitioner extends Serializable {
+
+	/*
+	 * Server storing the key
+	 */
+	int getServerId(int key);
+
+	int getNumServers();
+
+	int getNumKeys();
+
+	/*
+	 * Sorted keys stored by a server
+	 */
+	default int[] getKeys(int serverId) {
+		int count = 0;
+		for (int key = 0; key < getNumKeys(); key++) {
+			if (getServerId(key) == serverId)
+				count++;
+		}
+		int[] keys = new int[count];
+		int i = 0;
+		for (int key = 0; key < getNumKeys(); key++) {
+			if (getServerId(key) == serverId)
+				keys[i++] = key;
+		}
+		return keys;
+	}
+
+	/*
+	 * Create a partitioner: "range", "hash" or "consistent" (consistent hashing, virtualNodes points per server)
+	 */
+	static Partitioner create(String strategy, int numKeys, int numServers, int virtualNodes) {
+		switch (strategy) {
+		case "range":
+			return new RangePartitioner(numKeys, numServers);
+		case "hash":
+			return new HashPartitioner(numKeys, numServers);
+		case "consistent":
+			return new ConsistentHashPartitioner(numKeys, numServers, virtualNodes);
+		default:
+			throw new IllegalArgumentException("Unknown partitioner " + strategy);
+		}
+	}
+
+	/*
+	 * Finalizer of MurmurHash3, spreads consecutive keys on the whole int range
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,44 @@
+package it.unitn.ds1;
+
+/*
+ * Contiguous ranges of keys: server i stores [i * numKeys / numServers, (i + 1) * numKeys / numServers),
+ * the sizes of the ranges differ by at most one key
+ */
+public class RangePartitioner implements Partitioner {
+	private final int numKeys;
+	private final int numServers;
+
+	public RangePartitioner(int numKeys, int numServers) {
+		this.numKeys = numKeys;
+		this.numServers = numServers;
+	}
+
+	private int getFirstKey(int serverId) {
+		return (int) ((long) serverId * numKeys / numServers);
+	}
+
+	@Override
+	public int getServerId(int key) {
+		// largest server whose first key is not above the key
+		return (int) ((((long) key + 1) * numServers - 1) / numKeys);
+	}
+
+	@Override
+	public int getNumServers() {
+		return numServers;
+	}
+
+	@Override
+	public int getNumKeys() {
+		return numKeys;
+	}
+
+	@Override
+	public int[] getKeys(int serverId) {
+		int firstKey = getFirstKey(serverId);
+		int[] keys = new int[getFirstKey(serverId + 1) - firstKey];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = firstKey + i;
+		return keys;
+	}
+}
@@ -0,0 +1,243 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import akka.actor.*;
+
+/*
+ * Read replica of the partition of a server (the primary)
+ *
+ * The primary ships the write set of every committed Txn, in commit order (links are FIFO), with its safe timestamp:
+ * no Txn will commit on the primary at or before it anymore. A READ at a snapshot up to the safe timestamp is
+ * answered with the version of the snapshot. Other READs get the latest version applied, and the primary validates
+ * them at commit like its own reads. A READ at a snapshot above the safe timestamp waits for the primary to catch up.
+ *
+ * Replicas have no private workspace and take no part in the vote.
+ */
+public class Replica extends MeteredActor {
+	private final Integer replicaId;
+	private final Integer serverId; // id of the primary
+	private PartitionStore datastore;
+	private final SystemConfig config;
+	private ActorRef primary;
+
+	// Old versions of the items, read by the snapshots (multiVersion mode)
+	private VersionHistory versions = new VersionHistory();
+	// Highest commit timestamp applied
+	private long clock;
+	// Every Txn committed on the primary at or before safeTs is applied
+	private long safeTs;
+	// Highest timestamp the primary was asked to reach
+	private long requestedTs;
+	// READs waiting for the safe timestamp to reach their snapshot
+	private final List<WaitingRead> waitingReads = new ArrayList<WaitingRead>();
+
+	private static final Logger log = LogManager.getLogger(Replica.class);
+
+	/*-- Actor constructor ---------------------------------------------------- */
+
+	public Replica(int replicaId, int serverId, PartitionStore datastore, SystemConfig config) {
+		super("Replica", replicaId);
+		this.replicaId = replicaId;
+		this.serverId = serverId;
+		this.datastore = datastore;
+		this.config = config;
+		this.clock = 0;
+		this.safeTs = 0;
+		this.requestedTs = 0;
+	}
+
+	static public Props props(int replicaId, int serverId, PartitionStore datastore, SystemConfig config) {
+		return Props.create(Replica.class, () -> new Replica(replicaId, serverId, datastore, config));
+	}
+
+	/*-- Message classes ------------------------------------------------------ */
+
+	/*
+	 * Welcome message with the primary of the replica
+	 */
+	public static class WelcomeMsg implements Serializable {
+		public final ActorRef primary;
+
+		public WelcomeMsg(ActorRef primary) {
+			this.primary = primary;
+		}
+	}
+
+	/*
+	 * Write set of a Txn committed on the primary (no items if only the safe timestamp moved)
+	 */
+	public static class ReplicateMsg implements Serializable {
+		public final Map<Integer, DataItem> items;
+		public final long commitTs;
+		public final long safeTs;
+		public final long minSnapshotTs; // oldest snapshot read on the primary, older versions can be dropped
+
+		public ReplicateMsg(Map<Integer, DataItem> items, long commitTs, long safeTs, long minSnapshotTs) {
+			this.items = items;
+			this.commitTs = commitTs;
+			this.safeTs = safeTs;
+			this.minSnapshotTs = minSnapshotTs;
+		}
+	}
+
+	/*
+	 * Whole content of the primary, sent when its keys changed (migration of a key range)
+	 */
+	public static class ReplicaSyncMsg implements Serializable {
+		public final Map<Integer, DataItem> items;
+		public final long safeTs;
+
+		public ReplicaSyncMsg(Map<Integer, DataItem> items, long safeTs) {
+			this.items = items;
+			this.safeTs = safeTs;
+		}
+	}
+
+	/*
+	 * Ask the primary to move its safe timestamp up to ts, a READ of the replica waits for it
+	 */
+	public static class CatchUpMsg implements Serializable {
+		public final long ts;
+
+		public CatchUpMsg(long ts) {
+			this.ts = ts;
+		}
+	}
+
+	// READ request put aside, with the coordinator that sent it
+	private static class WaitingRead {
+		final long snapshotTs;
+		final Object msg;
+		final ActorRef sender;
+
+		WaitingRead(long snapshotTs, Object msg, ActorRef sender) {
+			this.snapshotTs = snapshotTs;
+			this.msg = msg;
+			this.sender = sender;
+		}
+	}
+
+	/*-- Actor methods -------------------------------------------------------- */
+
+	/*
+	 * Check if the replica can't serve a READ of the Txn yet: its snapshot is not safe
+	 * The READ is put aside and the primary is asked to catch up
+	 */
+	private boolean mustWait(Txn txn, Object msg) {
+		long snapshotTs = txn.getSnapshotTs();
+		if (snapshotTs < 0 || snapshotTs <= safeTs)
+			return false;
+		waitingReads.add(new WaitingRead(snapshotTs, msg, getSender()));
+		if (snapshotTs > requestedTs) {
+			requestedTs = snapshotTs;
+			primary.tell(new CatchUpMsg(snapshotTs), getSelf());
+		}
+		return true;
+	}
+
+	// Serve again the READs whose snapshot is now safe
+	private void wakeWaitingReads() {
+		Iterator<WaitingRead> it = waitingReads.iterator();
+		while (it.hasNext()) {
+			WaitingRead waiting = it.next();
+			if (waiting.snapshotTs <= safeTs) {
+				getSelf().tell(waiting.msg, waiting.sender);
+				it.remove();
+			}
+		}
+	}
+
+	/*
+	 * Read an item: the version of the snapshot of the Txn if available, the latest one otherwise
+	 *
+	 * @param snapshot set to false if the item is not the version of the snapshot
+	 * @return a copy of the item
+	 */
+	private DataItem readDataItem(Txn txn, Integer dataId, boolean[] snapshot) {
+		if (!datastore.contains(dataId)) {
+			// the key moved to another server: the primary will reject the version
+			snapshot[0] = false;
+			return new DataItem(-1, 0);
+		}
+		if (txn.getSnapshotTs() >= 0) {
+			DataItem dataItem = versions.read(datastore, dataId, txn.getSnapshotTs());
+			if (dataItem != null)
+				return dataItem;
+		}
+		snapshot[0] = false;
+		return datastore.get(dataId);
+	}
+
+	/*-- Message handlers ---------------------------------------------------- - */
+
+	private void OnWelcomeMsg(WelcomeMsg msg) {
+		this.primary = msg.primary;
+	}
+
+	private void OnReadMsg(Coordinator.ReadMsg msg) {
+		if (mustWait(msg.txn, msg))
+			return;
+		boolean[] snapshot = { config.multiVersion };
+		msg.dataoperation.setDataItem(readDataItem(msg.txn, msg.dataoperation.getKey(), snapshot));
+		log.debug("replica" + replicaId + "<--[READ(" + msg.dataoperation.getKey() + ")]--coordinator"
+				+ msg.txn.getCoordinatorId());
+		getSender().tell(new Coordinator.ReadResultMsg(serverId, msg.txn, msg.dataoperation, clock, snapshot[0],
+				msg.sentNanos, true), getSelf());
+	}
+
+	private void OnMultiReadMsg(Coordinator.MultiReadMsg msg) {
+		if (mustWait(msg.txn, msg))
+			return;
+		boolean[] snapshot = { config.multiVersion };
+		for (DataOperation dataoperation : msg.dataoperations) {
+			dataoperation.setDataItem(readDataItem(msg.txn, dataoperation.getKey(), snapshot));
+		}
+		getSender().tell(new Coordinator.MultiReadResultMsg(serverId, msg.txn, msg.dataoperations, clock, snapshot[0],
+				msg.sentNanos, true), getSelf());
+	}
+
+	private void OnReplicateMsg(ReplicateMsg msg) {
+		for (Map.Entry<Integer, DataItem> entry : msg.items.entrySet()) {
+			DataItem dataItem = entry.getValue();
+			if (config.multiVersion) {
+				versions.install(datastore, entry.getKey(), dataItem.getVersion(), dataItem.getValue(), msg.commitTs,
+						msg.minSnapshotTs);
+			} else {
+				datastore.put(entry.getKey(), dataItem.getVersion(), dataItem.getValue());
+			}
+		}
+		clock = Math.max(clock, msg.commitTs);
+		safeTs = Math.max(safeTs, msg.safeTs);
+		if (config.multiVersion && msg.minSnapshotTs > versions.getWatermark())
+			versions.collect(msg.minSnapshotTs);
+		wakeWaitingReads();
+	}
+
+	// The keys of the primary changed: older snapshots can't be read anymore
+	private void OnReplicaSyncMsg(ReplicaSyncMsg msg) {
+		datastore = datastore.rebuild(msg.items);
+		versions = new VersionHistory();
+		versions.collect(msg.safeTs);
+		clock = Math.max(clock, msg.safeTs);
+		safeTs = Math.max(safeTs, msg.safeTs);
+		wakeWaitingReads();
+		log.info("replica" + replicaId + " synced with server" + serverId + ": " + msg.items.size() + " keys");
+	}
+
+	@Override
+	public Receive createReceive() {
+		return receiveBuilder().match(Replica.WelcomeMsg.class, this::OnWelcomeMsg)
+				.match(Coordinator.ReadMsg.class, this::OnReadMsg)
+				.match(Coordinator.MultiReadMsg.class, this::OnMultiReadMsg)
+				.match(ReplicateMsg.class, this::OnReplicateMsg)
+				.match(ReplicaSyncMsg.class, this::OnReplicaSyncMsg).build();
+	}
+}
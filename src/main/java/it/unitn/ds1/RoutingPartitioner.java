@@ -0,0 +1,73 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Partitioner updated by the migrations of key ranges: a key belongs to the server of the latest move
+ * covering it, otherwise to the server given by the base partitioner
+ * Immutable, every move creates a new instance (migrations are rare, the moves are scanned linearly)
+ */
+public class RoutingPartitioner implements Partitioner {
+
+	// Keys [fromKey, toKey) moved to serverId by the migration migrationId
+	private static class Move implements Serializable {
+		final int fromKey, toKey;
+		final int serverId;
+		final long migrationId;
+
+		Move(int fromKey, int toKey, int serverId, long migrationId) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.serverId = serverId;
+			this.migrationId = migrationId;
+		}
+	}
+
+	private final Partitioner base;
+	// sorted by migrationId
+	private final List<Move> moves;
+
+	private RoutingPartitioner(Partitioner base, List<Move> moves) {
+		this.base = base;
+		this.moves = moves;
+	}
+
+	/*
+	 * Routing after the move of the keys [fromKey, toKey) to serverId
+	 * Moves may be learnt in any order, the one with the highest migrationId wins
+	 */
+	public static RoutingPartitioner withMove(Partitioner partitioner, int fromKey, int toKey, int serverId,
+			long migrationId) {
+		RoutingPartitioner routing = partitioner instanceof RoutingPartitioner ? (RoutingPartitioner) partitioner
+				: new RoutingPartitioner(partitioner, Collections.<Move>emptyList());
+		List<Move> moves = new ArrayList<Move>(routing.moves);
+		int i = moves.size();
+		while (i > 0 && moves.get(i - 1).migrationId > migrationId)
+			i--;
+		moves.add(i, new Move(fromKey, toKey, serverId, migrationId));
+		return new RoutingPartitioner(routing.base, Collections.unmodifiableList(moves));
+	}
+
+	@Override
+	public int getServerId(int key) {
+		for (int i = moves.size() - 1; i >= 0; i--) {
+			Move move = moves.get(i);
+			if (key >= move.fromKey && key < move.toKey)
+				return move.serverId;
+		}
+		return base.getServerId(key);
+	}
+
+	@Override
+	public int getNumServers() {
+		return base.getNumServers();
+	}
+
+	@Override
+	public int getNumKeys() {
+		return base.getNumKeys();
+	}
+}
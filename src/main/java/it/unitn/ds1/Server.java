@@ -1,60 +1,203 @@
 package it.unitn.ds1;
 
 import akka.actor.*;
-import it.unitn.ds1.DataOperation.Type;
 import it.unitn.ds1.Server.PrivateWorkspace;
 import it.unitn.ds1.TxnClient.TxnResultMsg;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class Server extends AbstractActor {
+public class Server extends MeteredActor {
 	private final Integer serverId;
 //list of every Private Workspaces in the server
-	private Map<Txn, PrivateWorkspace> privateWorkspaces = new HashMap<Txn, PrivateWorkspace>();
+	private Map<Long, PrivateWorkspace> privateWorkspaces = new HashMap<Long, PrivateWorkspace>();
 	private static final Logger log = LogManager.getLogger(Server.class);
 
 	// TXN operation (move some amount from a value to another)
-	private Map<Integer, DataItem> datastore;
+	private PartitionStore datastore;
+	// Validation locks of the items of the data store
+	private final LockTable locks = new LockTable();
+	// Locks taken and checks done to validate a Txn
+	private final Validator validator;
+	// Votes waiting for a locked key, by Txn (lockWaitMs mode)
+	private final Map<Txn, LockRequest> lockWaits = new HashMap<Txn, LockRequest>();
+	private final SystemConfig config;
+
+	// Lamport clock of the server, orders snapshots and commit timestamps (multiVersion mode)
+	private long clock;
+	// Old versions of the items, read by the snapshots (multiVersion mode)
+	private final VersionHistory versions = new VersionHistory();
+	// Number of private workspaces reading each snapshot timestamp (multiVersion mode)
+	private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<Long, Integer>();
+	// Time from the locking of the items of a Txn to their release
+	private final LatencyHistogram lockHold;
+	// Time a Txn waited for a locked key (lockWaitMs mode)
+	private final LatencyHistogram lockWait;
+	// ABORTs by cause and the keys causing them
+	private final AbortStats aborts;
+	// Migration of a key range to another server in progress (null if none), and the actor that asked for it
+	private MigrateRangeMsg migration;
+	private ActorRef migrationRequester;
+	// Delay before checking again if a migration can start
+	private static final int MIGRATION_RETRY_MS = 10;
+	// Read replicas of the partition, they receive the write set of every committed Txn
+	private final List<ActorRef> replicas;
+	// Prepare timestamps of the Txns that voted COMMIT and wait for the decision (only with replicas)
+	private final TreeSet<Long> preparedTs = new TreeSet<Long>();
+	// Last safe timestamp sent to the replicas
+	private long replicatedSafeTs;
+	// Write-ahead log of the committed write sets (null if the data store lives only in memory)
+	private WriteAheadLog wal;
+	// Answers waiting for the records logged before them to reach the disk (COMMIT sync policy)
+	private final List<DurableReply> durableReplies = new ArrayList<DurableReply>();
+	// Acknowledgements of COMMIT decisions waiting for the next flush that forces the log to the disk
+	// (none with the NONE sync policy: the coordinators keep their decisions)
+	private final List<DurableReply> decisionAcks = new ArrayList<DurableReply>();
+	// True if a FlushMsg is in the mailbox
+	private boolean flushScheduled;
+	// Duration of a flush of the log and number of records it wrote (write-ahead log only)
+	private LatencyHistogram walFlush, walBatch;
+	// Segment of the write-ahead log being written
+	private long walSegment;
+	// Write sets of the Txns that voted COMMIT before a restart and whose decision is not in the log
+	private final Map<Long, InDoubtTxn> inDoubt = new HashMap<Long, InDoubtTxn>();
+	// Coordinators, asked for the decision of the Txns that voted COMMIT and waited too long for it
+	private List<ActorRef> coordinators;
+	// True while a checkpoint is written in the background
+	private boolean checkpointing;
+	// Time to copy the partition for a checkpoint (the actor waits for it) and to write the copy (in the background)
+	private LatencyHistogram checkpointCopy, checkpointWrite;
+	// Dispatcher of the threads writing the checkpoints
+	private static final String CHECKPOINT_DISPATCHER = "akka.actor.default-blocking-io-dispatcher";
 
 	/*-- Actor constructor ---------------------------------------------------- */
 
-	public Server(int serverId, Map<Integer, DataItem> datastore) {
+	public Server(int serverId, PartitionStore datastore, SystemConfig config, List<ActorRef> replicas) {
+		super("Server", serverId);
 		this.serverId = serverId;
 		this.datastore = datastore;
+		this.config = config;
+		this.replicas = replicas;
+		this.validator = Validator.create(config.validator);
+		this.clock = 0;
+		this.replicatedSafeTs = 0;
+		this.lockHold = newHistogram("lockHold");
+		this.lockWait = newHistogram("lockWait");
+		this.aborts = addMetric("aborts", new AbortStats());
+		if (config.walDir != null) {
+			this.walFlush = newHistogram("walFlush");
+			this.walBatch = newHistogram("walBatch");
+			this.checkpointCopy = newHistogram("checkpointCopy");
+			this.checkpointWrite = newHistogram("checkpointWrite");
+		}
+	}
+
+	static public Props props(int serverId, PartitionStore datastore, SystemConfig config, List<ActorRef> replicas) {
+		List<ActorRef> replicaList = Collections.unmodifiableList(new ArrayList<ActorRef>(replicas));
+		return Props.create(Server.class, () -> new Server(serverId, datastore, config, replicaList));
+	}
+
+	static public Props props(int serverId, PartitionStore datastore, SystemConfig config) {
+		return props(serverId, datastore, config, Collections.<ActorRef>emptyList());
+	}
+
+	static public Props props(int serverId, PartitionStore datastore) {
+		return props(serverId, datastore, new SystemConfig());
 	}
 
 	static public Props props(int serverId, Map<Integer, DataItem> datastore) {
-		return Props.create(Server.class, () -> new Server(serverId, datastore));
+		return props(serverId, new MapPartitionStore(datastore));
 	}
 
 	/*-- Private workspace class ------------------------------------------------------ */
+
+	/*
+	 * Txn that voted COMMIT before a restart of the server, without decision in the log
+	 * Its items stay locked until its coordinator tells the decision
+	 */
+	private static class InDoubtTxn {
+		final Txn txn;
+		final long prepareTs;
+		final Map<Integer, DataItem> writes;
+
+		InDoubtTxn(long txnId, long prepareTs, Map<Integer, DataItem> writes) {
+			this.txn = new Txn(txnId, (int) (txnId >>> 32), -1);
+			this.prepareTs = prepareTs;
+			this.writes = writes;
+		}
+	}
+
+	/*
+	 * Slot of a private workspace for a single dataId:
+	 * the version first read from the data store and the last version written by the Txn
+	 */
+	public static class WorkspaceEntry {
+		// Copy of the data store item returned by the first read (null if the key was written before being read)
+		private DataItem readItem;
+		// Last DataItem written by the Txn (null if the key was only read)
+		private DataItem writeItem;
+		// Version of the data store item overwritten by the first write
+		private Integer baseVersion;
+
+		public DataItem getReadItem() {
+			return readItem;
+		}
+
+		public DataItem getWriteItem() {
+			return writeItem;
+		}
+
+		public Integer getBaseVersion() {
+			return baseVersion;
+		}
+	}
+
 	public class PrivateWorkspace {
 		private Txn txn;
-		//WriteCopies will contain the history of write operations for a Txn
-		private List<DataOperation> writeCopies;
-		//WriteCopies will contain the history of write operations for a Txn
-		private List<DataOperation> readCopies;
+		//One entry per dataId touched by the Txn, in order of first access
+		//allocated on the first access, a missing entry means the dataId was never read nor written
+		private Map<Integer, WorkspaceEntry> entries;
 		private final Integer serverId;
-		//Map a dataId with the number of write operations done in the server for a Txn
-		private HashMap<Integer, Integer> previousWriteOperations;
+		//Timestamp of the snapshot read by the Txn (-1 if reads see the latest versions)
+		private long snapshotTs = -1;
+		//Set when a version of the snapshot was not available and the latest one was read instead
+		private boolean snapshotBroken = false;
+		//Lamport timestamp of the COMMIT vote (-1 if the server did not vote COMMIT)
+		private long prepareTs = -1;
+		//System.nanoTime() when the Txn started to lock its items (0 if it never did)
+		private long lockedNanos = 0;
+		//True once the coordinator asked the vote
+		private boolean voteRequested = false;
+		//Vote cast by the server (null until cast, also while the Txn waits for a locked item)
+		private Boolean vote = null;
+		//True once the write set of the Txn is in the write-ahead log
+		private boolean logged = false;
+		//True once the lease of the locks expired and the coordinator was asked to abort
+		private boolean leaseExpired = false;
 
 		public PrivateWorkspace(Txn txn, Integer serverId) {
 			this.txn = txn;
-			this.writeCopies = new ArrayList<DataOperation>();
-			this.readCopies = new ArrayList<DataOperation>();
 			this.serverId = serverId;
-			this.previousWriteOperations = new HashMap<Integer, Integer>();
-			// set all the values to 0
-			for (Integer dataId : datastore.keySet())
-				previousWriteOperations.put(dataId, 0);
-
 		}
 
 		public Integer getServerId() {
@@ -64,42 +207,69 @@ public class Server extends AbstractActor {
 		public Txn getTxn() {
 			return txn;
 		}
-		/*
-		 * Given a dataId and list of copies of operations (write or reads), return the last version of the dataItem with id dataId
-		 * 
-		 * 
-		 * 
-		 */
-		public DataItem getLastDataItemOfCopies(Integer dataId, List<DataOperation> copies) {
-			List<DataItem> itemsWithSameId = new ArrayList<DataItem>();
-			//retrieve all the dataItem with id DataId
-			for (DataOperation dataoperation : copies) {
-				if (dataoperation.getKey() == dataId)
-					itemsWithSameId.add(dataoperation.getDataItem());
 
+		public Map<Integer, WorkspaceEntry> getEntries() {
+			if (entries == null)
+				return Collections.emptyMap();
+			return entries;
+		}
+
+		private WorkspaceEntry getOrCreateEntry(Integer dataId) {
+			if (entries == null)
+				entries = new LinkedHashMap<Integer, WorkspaceEntry>(4);
+			WorkspaceEntry entry = entries.get(dataId);
+			if (entry == null) {
+				entry = new WorkspaceEntry();
+				entries.put(dataId, entry);
 			}
-			if (itemsWithSameId.isEmpty())
+			return entry;
+		}
+
+		/*
+		 * Given a dataId, return the last version of the dataItem written by the Txn (null if never written)
+		 */
+		public DataItem getLastWrite(Integer dataId) {
+			if (entries == null)
 				return null;
-			else if (itemsWithSameId.size() == 1) {
-				return itemsWithSameId.get(0);
-				//retrieve the dataItem with the max version of the previous collection
-			} else {
-				Integer version = 0;
-				DataItem lastDataItem = null;
-				for (DataItem dataItem : itemsWithSameId) {
-					if (dataItem.getVersion() >= version)
-						version = dataItem.getVersion();
-					lastDataItem = dataItem;
-				}
-				return lastDataItem;
-			}
+			WorkspaceEntry entry = entries.get(dataId);
+			return entry == null ? null : entry.writeItem;
+		}
+
+		/*
+		 * Record a read from the data store, only the first one matters for the validation
+		 */
+		public void addRead(Integer dataId, DataItem dataItem) {
+			WorkspaceEntry entry = getOrCreateEntry(dataId);
+			if (entry.readItem == null && entry.writeItem == null)
+				entry.readItem = dataItem;
+		}
+
+		/*
+		 * Record a read served by a replica: it happened before any WRITE of the Txn, it is validated as well
+		 */
+		public void addReplicaRead(Integer dataId, DataItem dataItem) {
+			WorkspaceEntry entry = getOrCreateEntry(dataId);
+			if (entry.readItem == null)
+				entry.readItem = dataItem;
+		}
+
+		/*
+		 * Record a write, replacing the previous one on the same dataId
+		 * 
+		 * @param baseVersion version of the data store item, used only by the first write
+		 */
+		public void addWrite(Integer dataId, DataItem dataItem, Integer baseVersion) {
+			WorkspaceEntry entry = getOrCreateEntry(dataId);
+			if (entry.writeItem == null)
+				entry.baseVersion = baseVersion;
+			entry.writeItem = dataItem;
 		}
 
 		@Override
 		public int hashCode() {
 			final int prime = 31;
 			int result = 1;
-			result = prime * result + 100 * txn.getClientId() + txn.getCoordinatorId() + 1000 * serverId;
+			result = prime * result + Long.hashCode(txn.getTxnId()) + 1000 * serverId;
 			return result;
 		}
 
@@ -114,7 +284,7 @@ public class Server extends AbstractActor {
 			PrivateWorkspace other = (PrivateWorkspace) obj;
 			if (serverId != other.getServerId())
 				return false;
-			if (txn != other.getTxn())
+			if (!txn.equals(other.getTxn()))
 				return false;
 			return true;
 		}
@@ -123,12 +293,80 @@ public class Server extends AbstractActor {
 
 	/*-- Actor methods -------------------------------------------------------- */
 	public PrivateWorkspace getPrivateWorkspaceByTxn(Txn txn) {
-		for (Txn pwId : privateWorkspaces.keySet()) {
-			if (pwId.equals(txn)) {
-				return (privateWorkspaces.get(pwId));
+		return privateWorkspaces.get(txn.getTxnId());
+	}
+
+	/*
+	 * Retrieve the private workspace of the Txn, creating it on its first operation on the server
+	 * In multiVersion mode the new workspace registers the snapshot of the Txn
+	 */
+	PrivateWorkspace getOrCreatePrivateWorkspace(Txn txn) {
+		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
+		if (pw == null) {
+			pw = new PrivateWorkspace(txn, serverId);
+			privateWorkspaces.put(txn.getTxnId(), pw);
+			if (config.multiVersion && txn.getSnapshotTs() >= 0) {
+				pw.snapshotTs = txn.getSnapshotTs();
+				// later COMMIT votes get a timestamp above the snapshot
+				clock = Math.max(clock, pw.snapshotTs);
+				activeSnapshots.merge(pw.snapshotTs, 1, Integer::sum);
 			}
 		}
-		return null;
+		return pw;
+	}
+
+	/*
+	 * Remove the private workspace once the Txn is over, old versions no longer read are collected
+	 */
+	void removePrivateWorkspace(PrivateWorkspace pw) {
+		privateWorkspaces.remove(pw.getTxn().getTxnId());
+		if (pw.prepareTs >= 0 && !replicas.isEmpty())
+			preparedTs.remove(pw.prepareTs);
+		if (pw.snapshotTs >= 0) {
+			long oldestSnapshotTs = getOldestSnapshotTs();
+			if (activeSnapshots.merge(pw.snapshotTs, -1, Integer::sum) == 0)
+				activeSnapshots.remove(pw.snapshotTs);
+			if (getOldestSnapshotTs() != oldestSnapshotTs)
+				versions.collect(getOldestSnapshotTs());
+		}
+	}
+
+	/*
+	 * Oldest snapshot that may still be read, new snapshots below the clock can fall back to the latest versions
+	 */
+	private long getOldestSnapshotTs() {
+		if (activeSnapshots.isEmpty())
+			return clock;
+		return activeSnapshots.firstKey();
+	}
+
+	/*
+	 * Read an item of the data store: the latest version, or the version of the snapshot in multiVersion mode
+	 * If the version of the snapshot can't be known, the latest one is read and will be validated
+	 * 
+	 * @param pw, dataId
+	 * @return a copy of the item
+	 */
+	private DataItem readDataItem(PrivateWorkspace pw, Integer dataId) {
+		if (!datastore.contains(dataId)) {
+			// the key moved to another server and the coordinator didn't know yet:
+			// validation will fail, so the value returned doesn't matter
+			pw.snapshotBroken = true;
+			return new DataItem(-1, 0);
+		}
+		if (pw.snapshotTs >= 0 && !pw.snapshotBroken) {
+			DataItem dataItem = null;
+			// a Txn that voted COMMIT at or before the snapshot may be committed inside it
+			Txn owner = locks.getOwner(dataId);
+			PrivateWorkspace ownerPw = owner == null ? null : getPrivateWorkspaceByTxn(owner);
+			// (an owner without private workspace is a Txn in doubt, its commit timestamp is unknown)
+			if (owner == null || (ownerPw != null && ownerPw.prepareTs > pw.snapshotTs))
+				dataItem = versions.read(datastore, dataId, pw.snapshotTs);
+			if (dataItem != null)
+				return dataItem;
+			pw.snapshotBroken = true;
+		}
+		return datastore.get(dataId);
 	}
 
 	/*-- Message classes ------------------------------------------------------ */
@@ -140,13 +378,31 @@ public class Server extends AbstractActor {
 		public Txn txn;
 		public Boolean vote;
 		public Integer serverId;
+		// Lamport timestamp of a COMMIT vote, the commit timestamp is the maximum among the participants
+		public long prepareTs;
 
-		public TxnVoteMsg(Txn txn, Boolean vote, Integer serverId) {
+		public TxnVoteMsg(Txn txn, Boolean vote, Integer serverId, long prepareTs) {
 			this.txn = txn;
 			this.vote = vote;
 			this.serverId = serverId;
+			this.prepareTs = prepareTs;
+		}
+	}
+	/*
+	 * Outcome of a one-phase commit, sent to the coordinator
+	 */
+	public static class TxnOutcomeMsg implements Serializable {
+		public final Txn txn;
+		public final Boolean commit;
+		public final Integer serverId;
+
+		public TxnOutcomeMsg(Txn txn, Boolean commit, Integer serverId) {
+			this.txn = txn;
+			this.commit = commit;
+			this.serverId = serverId;
 		}
 	}
+
 // Goodbye message sent when the system is frozen, the server is sending the content of its datastore to the Consistency Tester
 	public static class GoodbyeMsg implements Serializable {
 		public int serverId;
@@ -158,59 +414,227 @@ public class Server extends AbstractActor {
 		}
 	}
 
+	/*
+	 * Welcome message with the coordinators, indexed by id
+	 */
+	public static class WelcomeMsg implements Serializable {
+		public final List<ActorRef> coordinators;
+
+		public WelcomeMsg(List<ActorRef> coordinators) {
+			this.coordinators = Collections.unmodifiableList(new ArrayList<ActorRef>(coordinators));
+		}
+	}
+
+	/*
+	 * Termination protocol: the server voted COMMIT and waits for the decision since decisionTimeoutMs,
+	 * the coordinator answers with a TxnVoteResultMsg (ABORT if it has no COMMIT logged for the Txn)
+	 */
+	public static class DecisionRequestMsg implements Serializable {
+		public final Txn txn;
+		public final Integer serverId;
+		// the lease of the locks of the Txn expired: the coordinator aborts it if not decided yet
+		public final boolean leaseExpired;
+
+		public DecisionRequestMsg(Txn txn, Integer serverId, boolean leaseExpired) {
+			this.txn = txn;
+			this.serverId = serverId;
+			this.leaseExpired = leaseExpired;
+		}
+
+		public DecisionRequestMsg(Txn txn, Integer serverId) {
+			this(txn, serverId, false);
+		}
+	}
+
+	/*
+	 * The server applied a COMMIT decision and forced its record to the disk (COMMIT and INTERVAL sync policies),
+	 * the coordinator can forget the decision once all the participants acknowledged it
+	 */
+	public static class DecisionAckMsg implements Serializable {
+		public final Txn txn;
+		public final Integer serverId;
+
+		public DecisionAckMsg(Txn txn, Integer serverId) {
+			this.txn = txn;
+			this.serverId = serverId;
+		}
+	}
+
+	// Sent by the server to itself decisionTimeoutMs after a COMMIT vote
+	private static class DecisionTimeoutMsg implements Serializable {
+		final Txn txn;
+
+		DecisionTimeoutMsg(Txn txn) {
+			this.txn = txn;
+		}
+	}
+
+	// Sent by the server to itself to flush the write-ahead log, after the messages already in the mailbox
+	private static class FlushMsg implements Serializable {
+	}
+
+	// Sent by the server to itself every walSyncMs milliseconds (INTERVAL sync policy)
+	private static class SyncTickMsg implements Serializable {
+	}
+
+	// Sent by the server to itself lockWaitMs after a Txn started to wait for a key
+	private static class LockWaitTimeoutMsg implements Serializable {
+		final Txn txn;
+
+		LockWaitTimeoutMsg(Txn txn) {
+			this.txn = txn;
+		}
+	}
+
+	// Sent by the server to itself to look for the expired leases of the locks
+	private static class LeaseTickMsg implements Serializable {
+	}
+
+	// Sent by the server to itself every checkpointMs milliseconds
+	private static class CheckpointTickMsg implements Serializable {
+	}
+
+	// Sent to the server when the checkpoint written in the background is on the disk (or failed)
+	private static class CheckpointDoneMsg implements Serializable {
+		final long segment; // first segment of the log not covered by the checkpoint
+		final long writeNanos;
+		final Throwable error;
+
+		CheckpointDoneMsg(long segment, long writeNanos, Throwable error) {
+			this.segment = segment;
+			this.writeNanos = writeNanos;
+			this.error = error;
+		}
+	}
+
+	// Vote of a Txn waiting for a locked key (lockWaitMs mode)
+	private static class LockRequest {
+		final Txn txn;
+		final PrivateWorkspace pw;
+		final ActorRef coordinator;
+		// items of the Txn, in key order
+		final List<Integer> keys;
+		// index of the next key to lock
+		int next;
+		Integer waitingKey;
+		long waitStartNanos;
+
+		LockRequest(Txn txn, PrivateWorkspace pw, ActorRef coordinator) {
+			this.txn = txn;
+			this.pw = pw;
+			this.coordinator = coordinator;
+			this.keys = new ArrayList<Integer>(pw.getEntries().keySet());
+			Collections.sort(this.keys);
+			this.next = 0;
+		}
+	}
+
+	// Answer sent once the write-ahead log is on the disk
+	private static class DurableReply {
+		final ActorRef to;
+		final Object msg;
+
+		DurableReply(ActorRef to, Object msg) {
+			this.to = to;
+			this.msg = msg;
+		}
+	}
+
+	/*
+	 * Ask the server to move the keys [fromKey, toKey) it stores to another server
+	 * When the target has the keys, the coordinators learn the new routing and the sender gets a MigrationDoneMsg
+	 */
+	public static class MigrateRangeMsg implements Serializable {
+		public final int fromKey, toKey;
+		public final Integer targetId;
+		public final ActorRef target;
+		public final List<ActorRef> coordinators;
+		public final long migrationId; // increasing, orders the routing updates
+
+		public MigrateRangeMsg(int fromKey, int toKey, int targetId, ActorRef target, List<ActorRef> coordinators,
+				long migrationId) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.targetId = targetId;
+			this.target = target;
+			this.coordinators = Collections.unmodifiableList(new ArrayList<ActorRef>(coordinators));
+			this.migrationId = migrationId;
+		}
+	}
+
+	// Items of the migrated keys, from the source server to the target server
+	public static class RangeHandoffMsg implements Serializable {
+		public final int fromKey, toKey;
+		public final Map<Integer, DataItem> items;
+		public final long clock; // Lamport clock of the source, the items were committed before it
+
+		public RangeHandoffMsg(int fromKey, int toKey, Map<Integer, DataItem> items, long clock) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.items = items;
+			this.clock = clock;
+		}
+	}
+
+	// The target server stores the migrated keys
+	public static class RangeAcceptedMsg implements Serializable {
+		public final int fromKey, toKey;
+		public final int keys; // number of keys received
+
+		public RangeAcceptedMsg(int fromKey, int toKey, int keys) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.keys = keys;
+		}
+	}
+
+	// Reply to MigrateRangeMsg
+	public static class MigrationDoneMsg implements Serializable {
+		public final int fromKey, toKey;
+		public final Integer sourceId, targetId;
+		public final int keys; // number of keys moved
+
+		public MigrationDoneMsg(int fromKey, int toKey, int sourceId, int targetId, int keys) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.sourceId = sourceId;
+			this.targetId = targetId;
+			this.keys = keys;
+		}
+	}
+
 	/*-- Message handlers ----------------------------------------------------- */
+	// The operations on the private workspaces, locks and data store are package-private,
+	// the benchmarks of src/jmh call them directly
 
-	//Handling the read requests from a coordinator for a given Txn
-	
-	private void OnReadMsg(Coordinator.ReadMsg msg) {
-		Txn txn = msg.txn;
-		DataOperation dataoperation = msg.dataoperation;
+	/*
+	 * Execute a READ in the private workspace of the Txn, the item read is set in the data operation
+	 */
+	void ReadOperation(PrivateWorkspace pw, DataOperation dataoperation) {
 		Integer dataId = dataoperation.getKey();
-		DataItem readDataItem;
-		
-		// First, get the pw of the Txn
-		// if no private workspace of the Txn txn : creation process
-		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
-		if (pw == null) {
-			pw = new PrivateWorkspace(txn, serverId);
-			privateWorkspaces.put(txn, pw);
-		}
 		// Retrieve the current version by first checking if previous writes have been done
-		HashMap<Integer, Integer> previousWriteOperations = pw.previousWriteOperations;
+		DataItem lastWrite = pw.getLastWrite(dataId);
 		
 		// If no write operations before : retrieve the dataItem in the data store and set the value of the data operation
-		if (previousWriteOperations.get(dataId) == 0) {
-			dataoperation.setDataItem(datastore.get(dataId));
+		if (lastWrite == null) {
+			dataoperation.setDataItem(readDataItem(pw, dataId));
+			// store the dataitem in the private workspace (only the first read of a key is kept)
+			pw.addRead(dataId, dataoperation.getDataItem());
 			
-		// Otherwise : retrieve the last version of the dataItem in the data store in the PW and set the value of the data operation
+		// Otherwise : retrieve the last version of the dataItem in the PW and set the value of the data operation
 		} else {
-			dataoperation.setDataItem(pw.getLastDataItemOfCopies(dataId, pw.writeCopies));
+			dataoperation.setDataItem(lastWrite);
 		}
-		readDataItem = new DataItem(dataoperation.getDataItem().getVersion(),
-				dataoperation.getDataItem().getValue());
 		log.debug("server" + serverId + "<--[READ(" + dataoperation.getKey() + ")]--coordinator"
-				+ txn.getCoordinatorId());
-		
-		// copy & store the dataitem in the private workspace
-		pw.readCopies.add(new DataOperation(Type.READ, dataId, dataoperation.getDataItem()));
-		// Answer to the coordinator with the serverId, the txn and the updated data operation
-		getSender().tell(new Coordinator.ReadResultMsg(serverId, txn, dataoperation), getSelf());
+				+ pw.getTxn().getCoordinatorId());
 	}
 
-	//Handling the write requests from a coordinator for a given Txn
-	private void OnWriteMsg(Coordinator.WriteMsg msg) {
-		Txn txn = msg.txn;
-		DataOperation dataoperation = msg.dataoperation;
+	/*
+	 * Execute a WRITE in the private workspace of the Txn
+	 */
+	void WriteOperation(PrivateWorkspace pw, DataOperation dataoperation) {
 		Integer dataId = dataoperation.getKey();
-		DataItem dataItemOverwriten;
-		// First, get the pw of the Txn
-		// if no private workspace of the Txn txn : creation process
-		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
-		if (pw == null) {
-			pw = new PrivateWorkspace(txn, serverId);
-			privateWorkspaces.put(txn, pw);
-		}
-		HashMap<Integer, Integer> previousWriteOperations = pw.previousWriteOperations;
+		DataItem lastWrite = pw.getLastWrite(dataId);
 		
 		// Creating the new dataItem
 		DataItem newDataItem = new DataItem(dataoperation.getDataItem().getVersion(),
@@ -219,26 +643,68 @@ public class Server extends AbstractActor {
 		// If no previous write operations before on the data Item of id Dataid :
 		// retrieve the original dataItem from the data store
 		
-		if (previousWriteOperations.get(dataId) == 0) {
-			dataItemOverwriten = datastore.get(dataId);
+		Integer version;
+		if (lastWrite == null) {
+			// a key that moved to another server is rejected by the validation
+			version = datastore.contains(dataId) ? datastore.getVersion(dataId) : -1;
 			// Otherwise : retrieve the last version of the dataItem in the data store in the PW 
 		} else {
-			dataItemOverwriten = pw.getLastDataItemOfCopies(dataId, pw.writeCopies);
+			version = lastWrite.getVersion();
 		}
-		// Retrieve the data version of the dataItem and Increase the data version of the future new dataItem<
-		Integer version = dataItemOverwriten.getVersion();
+		// Increase the data version of the future new dataItem
 		newDataItem.setVersion(version + 1);
 
-		// Increase the number of previous write operation for the Txn
-		Integer newDataOperationCounter = previousWriteOperations.get(dataId) + 1;
-		previousWriteOperations.put(dataId, newDataOperationCounter);
-		
 		log.debug("server" + serverId + "<--[WRITE(" + dataoperation.getKey() + ")=" + newDataItem.getValue()
-				+ ", previousversion=" + version + "]--coordinator" + txn.getCoordinatorId());
+				+ ", previousversion=" + version + "]--coordinator" + pw.getTxn().getCoordinatorId());
+
+		// copy the dataitem that will be temporary stored in the private workspace, replacing the previous write
+		pw.addWrite(dataId, newDataItem, version);
+	}
+
+	//Handling the read requests from a coordinator for a given Txn
+	
+	private void OnReadMsg(Coordinator.ReadMsg msg) {
+		Txn txn = msg.txn;
+		DataOperation dataoperation = msg.dataoperation;
+		
+		// First, get the pw of the Txn
+		// if no private workspace of the Txn txn : creation process
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(txn);
+		ReadOperation(pw, dataoperation);
+		// Answer to the coordinator with the serverId, the txn and the updated data operation
+		boolean snapshot = pw.snapshotTs >= 0 && !pw.snapshotBroken;
+		getSender().tell(new Coordinator.ReadResultMsg(serverId, txn, dataoperation, clock, snapshot, msg.sentNanos,
+				false), getSelf());
+	}
+
+	//Handling a batch of read requests from a coordinator for a given Txn, answered with a single message
+	
+	private void OnMultiReadMsg(Coordinator.MultiReadMsg msg) {
+		Txn txn = msg.txn;
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(txn);
+		for (DataOperation dataoperation : msg.dataoperations) {
+			ReadOperation(pw, dataoperation);
+		}
+		boolean snapshot = pw.snapshotTs >= 0 && !pw.snapshotBroken;
+		getSender().tell(new Coordinator.MultiReadResultMsg(serverId, txn, msg.dataoperations, clock, snapshot,
+				msg.sentNanos, false), getSelf());
+	}
 
-		// copy the dataitem that will be temporary stored in the private workspace
-		pw.writeCopies.add(new DataOperation(DataOperation.Type.WRITE, dataId, newDataItem));
+	//Handling the write requests from a coordinator for a given Txn
+	private void OnWriteMsg(Coordinator.WriteMsg msg) {
+		Txn txn = msg.txn;
+		// First, get the pw of the Txn
+		// if no private workspace of the Txn txn : creation process
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(txn);
+		WriteOperation(pw, msg.dataoperation);
+	}
 
+	//Handling a batch of write requests from a coordinator for a given Txn
+	private void OnMultiWriteMsg(Coordinator.MultiWriteMsg msg) {
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(msg.txn);
+		for (DataOperation dataoperation : msg.dataoperations) {
+			WriteOperation(pw, dataoperation);
+		}
 	}
 	
 	/*
@@ -249,61 +715,289 @@ public class Server extends AbstractActor {
 	 * @param pw, datastore
 	 * @return
 	 */
-	private Boolean CheckAndSetLocks (Txn txn, PrivateWorkspace pw) {
+	Boolean CheckAndSetLocks (Txn txn, PrivateWorkspace pw) {
 		Boolean possibleToLock = true;
-		DataItem dataItemReadCheck, dataItemWriteCheck;
-		//first check in the read copies of the private workspace
-		for (DataOperation dataoperation : pw.readCopies) {
-			dataItemReadCheck = dataoperation.getDataItem();
-			Integer dataId = dataoperation.getKey();
-			if (dataItemReadCheck != null) {
-				// Get the lock for the current data item
-				Integer lock = datastore.get(dataId).getLock();
-				// Check if item is locked by another transaction
-				// if so, cast an ABORT vote
-				if (lock != null && lock != txn.hashCode()) {
-					possibleToLock = false;
-					return possibleToLock;
-				
-				}else{
-					datastore.get(dataId).setLock(txn.hashCode());
-				}
+		//every key of the private workspace is locked once, in the mode asked by the validator
+		for (Map.Entry<Integer, WorkspaceEntry> entry : pw.getEntries().entrySet()) {
+			Integer dataId = entry.getKey();
+			// Check if item is locked by another transaction, otherwise lock it
+			// if so, cast an ABORT vote
+			// (items being migrated can't be locked anymore, the migration waits for their locks to be released)
+			if (IsMigrating(dataId)) {
+				aborts.record(AbortCause.RANGE_MOVED, dataId);
+				return false;
 			}
-		}
-		if (pw.writeCopies != null) {
-			
-		//do the same process with the write copies of the private workspace
-			
-			for (DataOperation dataoperation : pw.writeCopies) {
-				dataItemWriteCheck = dataoperation.getDataItem();
-				Integer dataId = dataoperation.getKey();
-				if (dataItemWriteCheck != null) {
-					// Get the lock for the current data item
-					Integer lock = datastore.get(dataId).getLock();
-					// Check if item is locked by another transaction
-					// if so, cast an ABORT vote
-					if (lock != null && lock != txn.hashCode()) {
-						possibleToLock = false;
-						return possibleToLock;
-						
-					}else{
-						datastore.get(dataId).setLock(txn.hashCode());
-					} 
-				}
+			if (!TryLock(txn, dataId, entry.getValue())) {
+				aborts.record(AbortCause.LOCK_CONFLICT, dataId);
+				possibleToLock = false;
+				return possibleToLock;
 			}
 		}
 		return possibleToLock;
 	}
 	
-	// Release the locks set by the current transaction over all the data items
+	// Lock an item of the private workspace in the mode asked by the validator
+	private boolean TryLock(Txn txn, Integer dataId, WorkspaceEntry entry) {
+		switch (validator.getLockMode(entry)) {
+		case EXCLUSIVE:
+			return locks.tryLock(txn, dataId);
+		case SHARED:
+			return locks.tryLockShared(txn, dataId);
+		default:
+			return true;
+		}
+	}
+
+	// Release the locks set by the current transaction, only the keys it holds are visited
+	// (the Txns waiting for them get them, lockWaitMs mode)
 	
-	private void ReleaseLocks(Txn txn) {
-		for (Map.Entry<Integer, DataItem> entry : datastore.entrySet()) {
-			Integer lock = entry.getValue().getLock();
-			if (lock != null && lock == txn.hashCode()) {
-				entry.getValue().setLock(null);
+	void ReleaseLocks(Txn txn) {
+		LockRequest request = lockWaits.remove(txn);
+		if (request != null)
+			locks.cancelWait(request.waitingKey, txn);
+		for (Txn woken : locks.releaseAll(txn)) {
+			ResumeLockRequest(woken);
+		}
+	}
+
+	/*
+	 * Lock the items of a Txn in key order, from where the request stopped
+	 * Two Txns lock their common keys on the server in the same order: a Txn waits only for Txns
+	 * that don't wait for it, the wait is bounded by lockWaitMs
+	 * 
+	 * @param request
+	 * @return true if every item is locked, false if an item can't be locked, null if the Txn waits in the queue of a key
+	 */
+	private Boolean AcquireLocks(LockRequest request) {
+		for (; request.next < request.keys.size(); request.next++) {
+			Integer dataId = request.keys.get(request.next);
+			// (items being migrated can't be locked anymore, the migration waits for their locks to be released)
+			if (IsMigrating(dataId)) {
+				aborts.record(AbortCause.RANGE_MOVED, dataId);
+				return false;
+			}
+			WorkspaceEntry entry = request.pw.getEntries().get(dataId);
+			if (!TryLock(request.txn, dataId, entry)) {
+				request.waitingKey = dataId;
+				locks.enqueue(dataId, request.txn, validator.getLockMode(entry) == Validator.LockMode.EXCLUSIVE);
+				return null;
+			}
+		}
+		return true;
+	}
+
+	// The key a Txn waited for was released and locked for it: it continues to lock its items, then votes
+	private void ResumeLockRequest(Txn txn) {
+		LockRequest request = lockWaits.get(txn);
+		if (request == null)
+			return;
+		request.next++;
+		Boolean locked = AcquireLocks(request);
+		if (locked == null)
+			return;
+		lockWaits.remove(txn);
+		lockWait.record(System.nanoTime() - request.waitStartNanos);
+		Vote(txn, request.pw, locked, request.coordinator);
+	}
+
+	// A Txn waited lockWaitMs for a key: it votes ABORT
+	private void OnLockWaitTimeoutMsg(LockWaitTimeoutMsg msg) {
+		LockRequest request = lockWaits.remove(msg.txn);
+		if (request == null)
+			return;
+		locks.cancelWait(request.waitingKey, msg.txn);
+		aborts.record(AbortCause.LOCK_CONFLICT, request.waitingKey);
+		lockWait.record(System.nanoTime() - request.waitStartNanos);
+		Vote(msg.txn, request.pw, false, request.coordinator);
+	}
+
+	// Check if the item belongs to the key range being migrated to another server
+	private boolean IsMigrating(Integer dataId) {
+		return migration != null && dataId >= migration.fromKey && dataId < migration.toKey;
+	}
+
+	/*
+	 * Check that none of the items of the Txn is locked by another transaction, without locking them
+	 * (an item only read conflicts only with an exclusive lock)
+	 * 
+	 * @param txn, pw
+	 * @return
+	 */
+	private Boolean CheckLocks(Txn txn, PrivateWorkspace pw) {
+		for (Map.Entry<Integer, WorkspaceEntry> entry : pw.getEntries().entrySet()) {
+			Integer dataId = entry.getKey();
+			Txn owner = locks.getOwner(dataId);
+			if (entry.getValue().writeItem != null && owner == null && locks.isLocked(dataId)) {
+				aborts.record(AbortCause.LOCK_CONFLICT, dataId);
+				return false;
+			}
+			if (owner != null && !owner.equals(txn)) {
+				aborts.record(AbortCause.LOCK_CONFLICT, dataId);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Local validation of the private workspace by the validator of the server
+	 * Stops at the first failed check, whose cause is recorded
+	 * 
+	 * @param pw
+	 * @return true if the Txn can commit
+	 */
+	Boolean ValidateWorkspace(PrivateWorkspace pw) {
+		return validator.validate(pw.txn, pw.getEntries(), datastore, locks, aborts);
+	}
+
+	/*
+	 * Install in the data store the last version written by the Txn for each key
+	 * 
+	 * @param pw, commitTs
+	 */
+	void ApplyWrites(PrivateWorkspace pw, long commitTs) {
+		// Versions installed by the Txn are visible to snapshots at or after its commit timestamp
+		clock = Math.max(clock, commitTs);
+
+		// only the last write of each key is installed
+		for (Map.Entry<Integer, WorkspaceEntry> entry : pw.getEntries().entrySet()) {
+			Integer dataId = entry.getKey();
+			DataItem dataItemWrite = entry.getValue().writeItem;
+			if (dataItemWrite == null)
+				continue;
+
+			//We make overwrites in the datastore
+			log.info("DataItem(" + dataId + ") =  (value = " + dataItemWrite.getValue()
+					+ ",version = " + dataItemWrite.getVersion() + " -> replace : (value = "
+					+ datastore.getValue(dataId) + ",version = " + datastore.getVersion(dataId)
+					+ ")");
+			if (config.multiVersion) {
+				versions.install(datastore, dataId, dataItemWrite.getVersion(), dataItemWrite.getValue(),
+						commitTs, getOldestSnapshotTs());
+			} else {
+				datastore.put(dataId, dataItemWrite.getVersion(), dataItemWrite.getValue());
 			}
 		}
+		validator.committed(pw.txn, pw.getEntries());
+	}
+
+	/*
+	 * Last version written by the Txn for each key
+	 * 
+	 * @param pw
+	 * @return
+	 */
+	private Map<Integer, DataItem> getWrites(PrivateWorkspace pw) {
+		Map<Integer, DataItem> items = new LinkedHashMap<Integer, DataItem>();
+		for (Map.Entry<Integer, WorkspaceEntry> entry : pw.getEntries().entrySet()) {
+			if (entry.getValue().writeItem != null)
+				items.put(entry.getKey(), entry.getValue().writeItem);
+		}
+		return items;
+	}
+
+	/*
+	 * Append a record to the write-ahead log, if any: it reaches the file with the next FlushMsg,
+	 * handled after the messages already in the mailbox so that their records share the same flush
+	 * 
+	 * @param type, id, ts, items
+	 */
+	private void LogRecord(byte type, long id, long ts, Map<Integer, DataItem> items) {
+		if (wal == null)
+			return;
+		wal.append(type, id, ts, items);
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (!flushScheduled) {
+			flushScheduled = true;
+			getSelf().tell(new FlushMsg(), getSelf());
+		}
+	}
+
+	/*
+	 * Acknowledge a COMMIT decision to the coordinator once the record of the decision is forced to the disk:
+	 * with the next flush (COMMIT sync policy) or the next SyncTickMsg (INTERVAL), never with NONE
+	 * 
+	 * @param to, txn
+	 */
+	private void AckDecision(ActorRef to, Txn txn) {
+		if (wal == null || config.walSync == WriteAheadLog.SyncPolicy.NONE)
+			return;
+		decisionAcks.add(new DurableReply(to, new DecisionAckMsg(txn, serverId)));
+		if (config.walSync == WriteAheadLog.SyncPolicy.COMMIT)
+			scheduleFlush();
+	}
+
+	/*
+	 * Send an answer that depends on the records logged so far
+	 * With the COMMIT sync policy it waits for the next flush, otherwise it is sent right away
+	 * 
+	 * @param to, msg
+	 */
+	private void ReplyDurable(ActorRef to, Object msg) {
+		if (wal != null && config.walSync == WriteAheadLog.SyncPolicy.COMMIT && wal.hasStaged())
+			durableReplies.add(new DurableReply(to, msg));
+		else
+			to.tell(msg, getSelf());
+	}
+
+	/*
+	 * Safe timestamp of the server: no Txn will commit at or before it anymore
+	 * (a Txn waiting for the decision commits at or after its prepare timestamp, the next ones after the clock)
+	 */
+	private long getSafeTs() {
+		if (preparedTs.isEmpty())
+			return clock;
+		return Math.min(clock, preparedTs.first() - 1);
+	}
+
+	/*
+	 * Send the WRITEs of a committed Txn to the replicas, with the new safe timestamp
+	 * Without WRITEs (pw null, or read-only Txn) only a safe timestamp that moved is sent
+	 * 
+	 * @param pw, commitTs
+	 */
+	private void ReplicateWrites(PrivateWorkspace pw, long commitTs) {
+		if (replicas.isEmpty())
+			return;
+		ReplicateWrites(pw == null ? Collections.<Integer, DataItem>emptyMap() : getWrites(pw), commitTs);
+	}
+
+	private void ReplicateWrites(Map<Integer, DataItem> items, long commitTs) {
+		if (replicas.isEmpty())
+			return;
+		long safeTs = getSafeTs();
+		if (items.isEmpty() && safeTs <= replicatedSafeTs)
+			return;
+		replicatedSafeTs = safeTs;
+		Replica.ReplicateMsg msg = new Replica.ReplicateMsg(items, commitTs, safeTs, getOldestSnapshotTs());
+		for (ActorRef replica : replicas)
+			replica.tell(msg, getSelf());
+	}
+
+	// Send the whole data store to the replicas, after a migration changed its keys
+	private void SyncReplicas() {
+		if (replicas.isEmpty())
+			return;
+		replicatedSafeTs = getSafeTs();
+		Replica.ReplicaSyncMsg msg = new Replica.ReplicaSyncMsg(datastore.toMap(), replicatedSafeTs);
+		for (ActorRef replica : replicas)
+			replica.tell(msg, getSelf());
+	}
+
+	/*
+	 * Add to the private workspace the READs of the Txn served by the replicas, they are validated here
+	 * A replica may have served a version older than the snapshot of the Txn, the snapshot can't be trusted anymore
+	 * 
+	 * @param pw, reads
+	 */
+	private void AddReplicaReads(PrivateWorkspace pw, List<DataOperation> reads) {
+		for (DataOperation dataoperation : reads) {
+			pw.addReplicaRead(dataoperation.getKey(), dataoperation.getDataItem());
+			pw.snapshotBroken = true;
+		}
 	}
 
 	// Local validation of the Txn validated by the server
@@ -311,52 +1005,161 @@ public class Server extends AbstractActor {
 	private void OnTxnAskVoteMsg(Coordinator.TxnAskVoteMsg msg) {
 		Txn txn = msg.txn;
 		Boolean vote = true;
-		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
-		DataItem dataItemReadCheck, dataItemWriteCheck;
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(txn);
+		pw.voteRequested = true;
+		AddReplicaReads(pw, msg.reads);
+		// WRITEs kept by the coordinator until now
+		for (DataOperation dataoperation : msg.writes) {
+			WriteOperation(pw, dataoperation);
+		}
 		
+		// A read-only Txn that read a whole snapshot is serializable at the snapshot
+		// nothing to lock nor to validate
+		if (msg.readOnly && pw.snapshotTs >= 0 && !pw.snapshotBroken) {
+			pw.vote = vote;
+			getSender().tell(new TxnVoteMsg(txn, vote, serverId, pw.snapshotTs), getSelf());
+			log.info("ServerId : " + serverId + " -> coordinator : " + txn.getCoordinatorId() + "(snapshot read-only vote = " + vote);
+			return;
+		}
+
 		//Check if items involved in the txn are already locked
-		//If so : vote false
+		//If so : vote false (or wait for them, lockWaitMs mode)
 		//If not : set locks to the dataitems
-		if (CheckAndSetLocks(txn, pw) == false) {
-			vote = false;
+		pw.lockedNanos = System.nanoTime();
+		if (config.lockWaitMs > 0) {
+			LockRequest request = new LockRequest(txn, pw, getSender());
+			Boolean locked = AcquireLocks(request);
+			if (locked == null) {
+				// the vote is cast when the Txn gets the key, or when it gives up
+				request.waitStartNanos = System.nanoTime();
+				lockWaits.put(txn, request);
+				getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.lockWaitMs), getSelf(),
+						new LockWaitTimeoutMsg(txn), getContext().system().dispatcher(), getSelf());
+				return;
+			}
+			Vote(txn, pw, locked, getSender());
+		} else {
+			Vote(txn, pw, CheckAndSetLocks(txn, pw), getSender());
 		}
+	}
+
+	/*
+	 * Cast the vote of a Txn once it tried to lock its items
+	 * 
+	 * @param txn, pw, locked, coordinator
+	 */
+	private void Vote(Txn txn, PrivateWorkspace pw, boolean locked, ActorRef coordinator) {
+		Boolean vote = true;
+		// the next reads tell the coordinators a clock above the order timestamps seen (TIMESTAMP validator)
+		clock = Math.max(clock, txn.getOrderTs());
+		if (locked == false) {
+			vote = false;
 		
-		//local validation of the read operations
-		
-		for (DataOperation dataoperation : pw.readCopies) {
-			Integer dataId = dataoperation.getKey();
-			dataItemReadCheck = dataoperation.getDataItem();
-			dataoperation.setType(DataOperation.Type.WRITE);
-			
-			if (datastore.get(dataId) != dataItemReadCheck) {
-				if (pw.writeCopies != null) {
-					if (!pw.writeCopies.contains(dataoperation)) {
-						vote = false;
-					}
-				}
+		//local validation of the private workspace
+		} else if (ValidateWorkspace(pw) == false) {
+			vote = false;
+		}
+		pw.vote = vote;
+		if (config.lockLeaseMs > 0)
+			locks.setLease(txn, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.lockLeaseMs));
+		// The COMMIT vote gets a Lamport timestamp, after all the snapshots already read on the server
+		if (vote) {
+			pw.prepareTs = ++clock;
+			if (!replicas.isEmpty())
+				preparedTs.add(pw.prepareTs);
+			// The write set must survive a crash before the server promises to commit it
+			Map<Integer, DataItem> writes = getWrites(pw);
+			if (!writes.isEmpty() && wal != null) {
+				LogRecord(WriteAheadLog.PREPARE, txn.getTxnId(), pw.prepareTs, writes);
+				pw.logged = true;
 			}
-
+			// the items stay locked until the decision: ask for it if the coordinator is silent
+			scheduleDecisionTimeout(txn);
 		}
+		//Notify the coordinator of the decision of server
+		ReplyDurable(coordinator, new TxnVoteMsg(txn, vote, serverId, pw.prepareTs));
+		log.info("ServerId : " + serverId + " -> coordinator : " + txn.getCoordinatorId() + "(local vote result = " + vote);
+	}
 
-		//local validation of the write operations
+	// Validation of a read-only Txn in a single round: no lock is taken and no decision will follow
+	
+	private void OnTxnValidateReadOnlyMsg(Coordinator.TxnValidateReadOnlyMsg msg) {
+		Txn txn = msg.txn;
+		Boolean vote = true;
+		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
+		if (!msg.reads.isEmpty()) {
+			pw = getOrCreatePrivateWorkspace(txn);
+			AddReplicaReads(pw, msg.reads);
+		}
 
-		for (DataOperation dataoperation : pw.writeCopies) {
-			Integer dataId = dataoperation.getKey();
-			dataItemWriteCheck = dataoperation.getDataItem();
-			DataItem dataItemOriginal = datastore.get(dataId);
-			if ((dataItemWriteCheck.getVersion() - dataItemOriginal.getVersion()) <= 0) {
-				vote = false;
+		// Reads from an intact snapshot are already consistent
+		if (pw != null && (pw.snapshotTs < 0 || pw.snapshotBroken)) {
+			for (Map.Entry<Integer, WorkspaceEntry> entry : pw.getEntries().entrySet()) {
+				Integer dataId = entry.getKey();
+				DataItem dataItemReadCheck = entry.getValue().readItem;
+				if (dataItemReadCheck == null)
+					continue;
+				if (!datastore.contains(dataId)) {
+					aborts.record(AbortCause.RANGE_MOVED, dataId);
+					vote = false;
+					break;
+				}
+				// the version read must still be the latest one, and no Txn about to commit may overwrite it
+				if (datastore.getVersion(dataId) != dataItemReadCheck.getVersion()) {
+					aborts.record(AbortCause.STALE_READ, dataId);
+					vote = false;
+					break;
+				}
+				if (locks.getOwner(dataId) != null) {
+					aborts.record(AbortCause.LOCK_CONFLICT, dataId);
+					vote = false;
+					break;
+				}
 			}
 		}
-		//Notify the coordinator of the decision of server
-		getSender().tell(new TxnVoteMsg(txn, vote, serverId), getSelf());
-		log.info("ServerId : " + serverId + " -> coordinator : " + txn.getCoordinatorId() + "(local vote result = " + vote);
+		if (pw != null) {
+			removePrivateWorkspace(pw);
+			pw.entries = null;
+		}
+		getSender().tell(new TxnVoteMsg(txn, vote, serverId, 0), getSelf());
+		log.info("ServerId : " + serverId + " -> coordinator : " + txn.getCoordinatorId() + "(read-only vote = " + vote);
+	}
+
+	// One-phase commit of a Txn whose items are all stored by this server:
+	// validation and commit happen in the same step, no lock is held between them
+	
+	private void OnTxnOnePhaseCommitMsg(Coordinator.TxnOnePhaseCommitMsg msg) {
+		Txn txn = msg.txn;
+		Boolean commit = false;
+		PrivateWorkspace pw = getOrCreatePrivateWorkspace(txn);
+		AddReplicaReads(pw, msg.reads);
+		// WRITEs kept by the coordinator until now
+		for (DataOperation dataoperation : msg.writes) {
+			WriteOperation(pw, dataoperation);
+		}
+
+		// items locked by a Txn of the two-phase commit may still be overwritten by it
+		clock = Math.max(clock, txn.getOrderTs());
+		commit = CheckLocks(txn, pw) && ValidateWorkspace(pw);
+		long commitTs = commit ? ++clock : 0;
+		if (commit) {
+			ApplyWrites(pw, commitTs);
+			Map<Integer, DataItem> writes = getWrites(pw);
+			if (!writes.isEmpty())
+				LogRecord(WriteAheadLog.ONE_PHASE_COMMIT, txn.getTxnId(), commitTs, writes);
+		}
+		removePrivateWorkspace(pw);
+		ReplicateWrites(commit ? pw : null, commitTs);
+		pw.entries = null;
+		ReplyDurable(getSender(), new TxnOutcomeMsg(txn, commit, serverId));
+		log.info("ServerId : " + serverId + " -> coordinator : " + txn.getCoordinatorId() + "(one-phase commit = " + commit);
 	}
 
 	private void OnTxnVoteResultMsg(Coordinator.TxnVoteResultMsg msg) {
 		Txn txn = msg.txn;
 		boolean commit = msg.commit;
 		PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
+		long lockedNanos = pw == null ? 0 : pw.lockedNanos;
 
 		log.debug("Server " + serverId + " gets the final vote result: " + commit);
 
@@ -364,49 +1167,498 @@ public class Server extends AbstractActor {
 		// in the datastore
 
 		if (!(pw == null)) {
+			if (pw.logged) {
+				// the decision is not forced to the disk, the coordinator knows it
+				LogRecord(commit ? WriteAheadLog.COMMIT : WriteAheadLog.ABORT, txn.getTxnId(), msg.commitTs,
+						Collections.<Integer, DataItem>emptyMap());
+			}
 			if (commit) {
-
-				for (DataOperation dataoperation : pw.writeCopies) {
-					Integer dataId = dataoperation.getKey();
-
-					//We make overwrites in the datastore
-					Integer originalVersion = datastore.get(dataId).getVersion();
-					Integer version = dataoperation.getDataItem().getVersion();
-					 
-					log.info("DataItem(" + dataId + ") =  (value = " + dataoperation.getDataItem().getValue()
-							+ ",version = " + dataoperation.getDataItem().getVersion() + " -> replace : (value = "
-							+ datastore.get(dataId).getValue() + ",version = " + datastore.get(dataId).getVersion()
-							+ ")");
-					datastore.put(dataId, new DataItem(dataoperation.getDataItem().getVersion(),
-							dataoperation.getDataItem().getValue()));
-
-				}
-				
+				ApplyWrites(pw, msg.commitTs);
+			} else if (!pw.voteRequested) {
+				// ABORT before the vote request: asked by the client
+				aborts.record(AbortCause.CLIENT_ABORT);
+			} else if (pw.vote == null) {
+				// ABORT while the Txn waits for a locked item: another server voted ABORT
+				aborts.record(AbortCause.PARTICIPANT_ABORT);
+			} else if (pw.vote) {
+				aborts.record(pw.leaseExpired ? AbortCause.LEASE_EXPIRED : AbortCause.PARTICIPANT_ABORT);
 			}
 			// We remove the the private workspace from the server either the decision is
 			// commit or not
-			pw.previousWriteOperations = null;
-			pw.readCopies = null;
-			pw.writeCopies = null;
+			removePrivateWorkspace(pw);
+			// the replicas get the WRITEs, or the safe timestamp released by the ABORT
+			ReplicateWrites(commit ? pw : null, msg.commitTs);
+			pw.entries = null;
 			pw = null;
 			
+		} else if (inDoubt.containsKey(txn.getTxnId())) {
+			ResolveInDoubt(inDoubt.remove(txn.getTxnId()), commit, msg.commitTs);
 		}
-		privateWorkspaces.remove(txn);
-		// Release the locks set by the current transaction over all the data items
+		// Release the locks set by the current transaction
 		ReleaseLocks(txn);
+		if (lockedNanos != 0)
+			lockHold.record(System.nanoTime() - lockedNanos);
+		// also for a decision already applied: the coordinator sends again the ones it recovered
+		if (commit)
+			AckDecision(getSender(), txn);
+	}
+
+	/*
+	 * Migration of a key range, on the source server:
+	 * 1. the range is fenced, new Txns can't lock its items (they vote ABORT)
+	 * 2. once no item of the range is locked (no Txn between vote and decision), the items leave the data store
+	 *    and are sent to the target; private workspaces with items of the range will fail validation
+	 * 3. when the target has them, the coordinators learn the new routing
+	 * Operations reaching the source with the old routing are rejected at validation.
+	 */
+	private void OnMigrateRangeMsg(MigrateRangeMsg msg) {
+		if (migration != null && migration != msg) {
+			// one migration at a time
+			retryMigration(msg);
+			return;
+		}
+		migration = msg;
+		for (int key = msg.fromKey; key < msg.toKey; key++) {
+			if (locks.isLocked(key)) {
+				retryMigration(msg);
+				return;
+			}
+		}
+
+		Map<Integer, DataItem> remaining = datastore.toMap();
+		Map<Integer, DataItem> items = new HashMap<Integer, DataItem>();
+		for (int key = msg.fromKey; key < msg.toKey; key++) {
+			DataItem dataItem = remaining.remove(key);
+			if (dataItem != null)
+				items.put(key, dataItem);
+			versions.remove(key);
+		}
+		datastore = datastore.rebuild(remaining);
+		LogRecord(WriteAheadLog.RANGE_OUT, msg.migrationId, clock, items);
+		SyncReplicas();
+		migrationRequester = getSender();
+		msg.target.tell(new RangeHandoffMsg(msg.fromKey, msg.toKey, items, clock), getSelf());
+		log.info("server" + serverId + " hands off " + items.size() + " keys [" + msg.fromKey + ", " + msg.toKey
+				+ ") to server" + msg.targetId);
+	}
+
+	// Check again later, keeping the sender of the request
+	private void retryMigration(MigrateRangeMsg msg) {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(MIGRATION_RETRY_MS), getSelf(), msg,
+				getContext().system().dispatcher(), getSender());
+	}
+
+	// Migration of a key range, on the target server: the items join the data store
+	private void OnRangeHandoffMsg(RangeHandoffMsg msg) {
+		Map<Integer, DataItem> items = datastore.toMap();
+		items.putAll(msg.items);
+		datastore = datastore.rebuild(items);
+		// the items were committed before the clock of the source, older snapshots can't read them
+		clock = Math.max(clock, msg.clock);
+		if (config.multiVersion) {
+			for (Map.Entry<Integer, DataItem> entry : msg.items.entrySet())
+				versions.addMigrated(entry.getKey(), entry.getValue().getVersion(), entry.getValue().getValue(),
+						msg.clock);
+		}
+		validator.migrated(msg.items.keySet(), msg.clock);
+		LogRecord(WriteAheadLog.RANGE_IN, 0, msg.clock, msg.items);
+		SyncReplicas();
+		ReplyDurable(getSender(), new RangeAcceptedMsg(msg.fromKey, msg.toKey, msg.items.size()));
+		log.info("server" + serverId + " takes " + msg.items.size() + " keys [" + msg.fromKey + ", " + msg.toKey + ")");
+	}
+
+	private void OnRangeAcceptedMsg(RangeAcceptedMsg msg) {
+		for (ActorRef coordinator : migration.coordinators) {
+			coordinator.tell(new Coordinator.RoutingUpdateMsg(migration.fromKey, migration.toKey, migration.targetId,
+					migration.migrationId), getSelf());
+		}
+		migrationRequester.tell(new MigrationDoneMsg(migration.fromKey, migration.toKey, serverId,
+				migration.targetId, msg.keys), getSelf());
+		migration = null;
+		migrationRequester = null;
+	}
+
+	// A replica has a READ at a snapshot above its safe timestamp: the clock moves past the snapshot,
+	// the Txns committing later get a higher timestamp
+	private void OnCatchUpMsg(Replica.CatchUpMsg msg) {
+		clock = Math.max(clock, msg.ts);
+		ReplicateWrites((PrivateWorkspace) null, 0);
+	}
+
+	private void OnWelcomeMsg(WelcomeMsg msg) {
+		this.coordinators = msg.coordinators;
+		// the Txns in doubt after a restart ask for their decision right away
+		for (InDoubtTxn inDoubtTxn : inDoubt.values())
+			getSelf().tell(new DecisionTimeoutMsg(inDoubtTxn.txn), getSelf());
+	}
+
+	private void scheduleDecisionTimeout(Txn txn) {
+		if (config.decisionTimeoutMs <= 0 || coordinators == null)
+			return;
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.decisionTimeoutMs), getSelf(),
+				new DecisionTimeoutMsg(txn), getContext().system().dispatcher(), getSelf());
+	}
+
+	// Still no decision for a Txn that voted COMMIT: ask its coordinator, again after the next timeout
+	private void OnDecisionTimeoutMsg(DecisionTimeoutMsg msg) {
+		PrivateWorkspace pw = getPrivateWorkspaceByTxn(msg.txn);
+		boolean waiting = (pw != null && pw.prepareTs >= 0) || inDoubt.containsKey(msg.txn.getTxnId());
+		if (!waiting || coordinators == null)
+			return;
+		if (msg.txn.getCoordinatorId() >= coordinators.size()) {
+			log.warn("server" + serverId + ": coordinator" + msg.txn.getCoordinatorId() + " of the Txn "
+					+ msg.txn.getTxnId() + " is not running, its items stay locked");
+			return;
+		}
+		log.info("server" + serverId + ": no decision for the Txn " + msg.txn.getTxnId() + ", ask coordinator"
+				+ msg.txn.getCoordinatorId());
+		coordinators.get(msg.txn.getCoordinatorId()).tell(new DecisionRequestMsg(msg.txn, serverId), getSelf());
+		scheduleDecisionTimeout(msg.txn);
+	}
+
+	/*
+	 * Apply the decision of a Txn in doubt after a restart, its locks are released by the caller
+	 * 
+	 * @param inDoubtTxn, commit, commitTs
+	 */
+	private void ResolveInDoubt(InDoubtTxn inDoubtTxn, boolean commit, long commitTs) {
+		LogRecord(commit ? WriteAheadLog.COMMIT : WriteAheadLog.ABORT, inDoubtTxn.txn.getTxnId(), commitTs,
+				Collections.<Integer, DataItem>emptyMap());
+		if (!replicas.isEmpty())
+			preparedTs.remove(inDoubtTxn.prepareTs);
+		if (commit) {
+			clock = Math.max(clock, commitTs);
+			for (Map.Entry<Integer, DataItem> write : inDoubtTxn.writes.entrySet()) {
+				if (!datastore.contains(write.getKey()))
+					continue;
+				DataItem dataItem = write.getValue();
+				if (config.multiVersion) {
+					versions.install(datastore, write.getKey(), dataItem.getVersion(), dataItem.getValue(), commitTs,
+							getOldestSnapshotTs());
+				} else {
+					datastore.put(write.getKey(), dataItem.getVersion(), dataItem.getValue());
+				}
+			}
+		}
+		ReplicateWrites(commit ? inDoubtTxn.writes : Collections.<Integer, DataItem>emptyMap(), commitTs);
+		log.info("server" + serverId + ": Txn " + inDoubtTxn.txn.getTxnId() + " in doubt, decision " + commit);
+	}
+
+	// Group commit: one write (and one fsync with the COMMIT policy) for every record appended since the last flush
+	private void OnFlushMsg(FlushMsg msg) {
+		flushScheduled = false;
+		FlushLog(config.walSync == WriteAheadLog.SyncPolicy.COMMIT);
+	}
+
+	/*
+	 * Write the records appended since the last flush, then send the answers waiting for them
+	 * 
+	 * @param force also force the records to the disk
+	 */
+	private void FlushLog(boolean force) {
+		if (!wal.hasStaged() && durableReplies.isEmpty() && (!force || decisionAcks.isEmpty()))
+			return;
+		long start = System.nanoTime();
+		try {
+			walBatch.record(wal.flush(force));
+		} catch (IOException e) {
+			throw new UncheckedIOException("server" + serverId + ": write-ahead log not written", e);
+		}
+		walFlush.record(System.nanoTime() - start);
+		for (DurableReply reply : durableReplies)
+			reply.to.tell(reply.msg, getSelf());
+		durableReplies.clear();
+		if (force) {
+			for (DurableReply ack : decisionAcks)
+				ack.to.tell(ack.msg, getSelf());
+			decisionAcks.clear();
+		}
+	}
+
+	/*
+	 * Files of the write-ahead log and of the checkpoint of a server
+	 */
+	static Path getSegmentPath(String walDir, int serverId, long segment) {
+		return Paths.get(walDir, "server" + serverId + "-" + segment + ".wal");
+	}
+
+	static Path getCheckpointPath(String walDir, int serverId) {
+		return Paths.get(walDir, "server" + serverId + ".ckpt");
+	}
+
+	// Segments of the write-ahead log of the server, from the oldest
+	private List<Long> getSegments() throws IOException {
+		List<Long> segments = new ArrayList<Long>();
+		String prefix = "server" + serverId + "-";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(config.walDir), prefix + "*.wal")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(Long.parseLong(name.substring(prefix.length(), name.length() - ".wal".length())));
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/*
+	 * Restore the partition from the checkpoint (mapped, not parsed item by item), then replay the segments
+	 * of the log written after it; the log continues in a new segment
+	 */
+	private void Recover() throws IOException {
+		long start = System.nanoTime();
+		long firstSegment = 0;
+		Checkpoint checkpoint = Checkpoint.read(getCheckpointPath(config.walDir, serverId));
+		if (checkpoint != null) {
+			datastore = datastore.restore(checkpoint.keys, checkpoint.items);
+			clock = checkpoint.clock;
+			firstSegment = checkpoint.segment;
+		}
+		walSegment = firstSegment;
+		int records = 0;
+		for (long segment : getSegments()) {
+			walSegment = Math.max(walSegment, segment + 1);
+			if (segment >= firstSegment)
+				records += WriteAheadLog.replay(getSegmentPath(config.walDir, serverId, segment), this::ReplayRecord);
+		}
+		// snapshots older than the recovered state can't be read
+		versions.collect(clock);
+		validator.recovered(clock);
+		if (checkpoint != null || records > 0) {
+			log.info("server" + serverId + " recovered " + datastore.size() + " keys, " + records + " log records in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+			SyncReplicas();
+		}
+		// the items of the Txns in doubt stay locked until their coordinators tell the decision
+		for (InDoubtTxn inDoubtTxn : inDoubt.values()) {
+			for (Integer key : inDoubtTxn.writes.keySet()) {
+				if (datastore.contains(key))
+					locks.tryLock(inDoubtTxn.txn, key);
+			}
+			if (!replicas.isEmpty())
+				preparedTs.add(inDoubtTxn.prepareTs);
+		}
+		if (!inDoubt.isEmpty())
+			log.warn("server" + serverId + ": " + inDoubt.size() + " transactions voted COMMIT without decision in the log");
+	}
+
+	// Redo a record of the log on the data store
+	private void ReplayRecord(byte type, long id, long ts, Map<Integer, DataItem> items) {
+		clock = Math.max(clock, ts);
+		switch (type) {
+		case WriteAheadLog.PREPARE:
+			inDoubt.put(id, new InDoubtTxn(id, ts, items));
+			break;
+		case WriteAheadLog.COMMIT:
+			InDoubtTxn prepared = inDoubt.remove(id);
+			if (prepared != null)
+				ReplayWrites(prepared.writes);
+			break;
+		case WriteAheadLog.ABORT:
+			inDoubt.remove(id);
+			break;
+		case WriteAheadLog.ONE_PHASE_COMMIT:
+			ReplayWrites(items);
+			break;
+		case WriteAheadLog.RANGE_IN:
+			Map<Integer, DataItem> joined = datastore.toMap();
+			joined.putAll(items);
+			datastore = datastore.rebuild(joined);
+			validator.migrated(items.keySet(), ts);
+			break;
+		case WriteAheadLog.RANGE_OUT:
+			Map<Integer, DataItem> remaining = datastore.toMap();
+			remaining.keySet().removeAll(items.keySet());
+			datastore = datastore.rebuild(remaining);
+			break;
+		}
+	}
+
+	private void ReplayWrites(Map<Integer, DataItem> writes) {
+		for (Map.Entry<Integer, DataItem> write : writes.entrySet()) {
+			if (datastore.contains(write.getKey()))
+				datastore.put(write.getKey(), write.getValue().getVersion(), write.getValue().getValue());
+		}
+	}
+
+	/*
+	 * Close the segment of the log being written and start the next one
+	 * The write sets of the Txns still waiting for their decision are logged again, the old segments can go
+	 */
+	private void RotateLog() throws IOException {
+		FlushLog(true);
+		wal.close();
+		walSegment++;
+		wal = new WriteAheadLog(getSegmentPath(config.walDir, serverId, walSegment));
+		for (PrivateWorkspace pw : privateWorkspaces.values()) {
+			if (pw.logged)
+				LogRecord(WriteAheadLog.PREPARE, pw.getTxn().getTxnId(), pw.prepareTs, getWrites(pw));
+		}
+		for (InDoubtTxn inDoubtTxn : inDoubt.values())
+			LogRecord(WriteAheadLog.PREPARE, inDoubtTxn.txn.getTxnId(), inDoubtTxn.prepareTs, inDoubtTxn.writes);
+	}
+
+	/*
+	 * Checkpoint: the actor starts a new segment of the log and copies the partition (a copy of its arrays),
+	 * a thread of the blocking dispatcher writes the copy while the actor goes on
+	 */
+	private void OnCheckpointTickMsg(CheckpointTickMsg msg) {
+		scheduleCheckpointTick();
+		if (checkpointing)
+			return;
+		long start = System.nanoTime();
+		try {
+			RotateLog();
+		} catch (IOException e) {
+			throw new UncheckedIOException("server" + serverId + ": write-ahead log not rotated", e);
+		}
+		int[] keys = datastore.getKeys();
+		long[] items = datastore.copyPackedItems();
+		long checkpointClock = clock;
+		long segment = walSegment;
+		checkpointCopy.record(System.nanoTime() - start);
+		checkpointing = true;
+
+		Path path = getCheckpointPath(config.walDir, serverId);
+		ActorRef self = getSelf();
+		Executor executor = getContext().system().dispatchers().lookup(CHECKPOINT_DISPATCHER);
+		CompletableFuture.runAsync(() -> {
+			try {
+				Checkpoint.write(path, checkpointClock, segment, keys, items);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor).whenComplete((result, error) -> self
+				.tell(new CheckpointDoneMsg(segment, System.nanoTime() - start, error), ActorRef.noSender()));
+	}
+
+	// The checkpoint is on the disk: the segments of the log before it are not needed anymore
+	private void OnCheckpointDoneMsg(CheckpointDoneMsg msg) {
+		checkpointing = false;
+		if (msg.error != null) {
+			log.warn("server" + serverId + ": checkpoint not written: " + msg.error);
+			return;
+		}
+		checkpointWrite.record(msg.writeNanos);
+		try {
+			for (long segment : getSegments()) {
+				if (segment < msg.segment)
+					Files.deleteIfExists(getSegmentPath(config.walDir, serverId, segment));
+			}
+		} catch (IOException e) {
+			log.warn("server" + serverId + ": old segments of the write-ahead log not deleted: " + e);
+		}
+		log.debug("server" + serverId + ": checkpoint written, log truncated before segment " + msg.segment);
+	}
+
+	private void scheduleCheckpointTick() {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.checkpointMs), getSelf(),
+				new CheckpointTickMsg(), getContext().system().dispatcher(), getSelf());
+	}
 
+	/*
+	 * Bound the time a Txn holds its locks:
+	 * - a Txn that voted ABORT can't commit anymore, its locks are released without waiting for the decision
+	 * - a Txn that voted COMMIT may be committed by the coordinator: the server can't abort it alone,
+	 *   it asks the coordinator to abort it (if not decided yet) and renews the lease until the decision arrives
+	 */
+	private void OnLeaseTickMsg(LeaseTickMsg msg) {
+		long now = System.nanoTime();
+		for (Txn txn : locks.getExpiredLeases(now)) {
+			PrivateWorkspace pw = getPrivateWorkspaceByTxn(txn);
+			if (pw != null && Boolean.TRUE.equals(pw.vote)) {
+				pw.leaseExpired = true;
+				locks.setLease(txn, now + TimeUnit.MILLISECONDS.toNanos(config.lockLeaseMs));
+				if (coordinators != null && txn.getCoordinatorId() < coordinators.size())
+					coordinators.get(txn.getCoordinatorId()).tell(new DecisionRequestMsg(txn, serverId, true), getSelf());
+				log.debug("server" + serverId + ": lease of the Txn " + txn.getTxnId() + " expired, ask to abort");
+			} else {
+				ReleaseLocks(txn);
+				if (pw != null && pw.lockedNanos != 0) {
+					lockHold.record(now - pw.lockedNanos);
+					pw.lockedNanos = 0;
+				}
+				log.debug("server" + serverId + ": lease of the Txn " + txn.getTxnId() + " expired, locks released");
+			}
+		}
+		scheduleLeaseTick();
+	}
+
+	// The leases are checked four times per lease duration, a lock is held at most 1.25 lockLeaseMs before the check
+	private void scheduleLeaseTick() {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(Math.max(1, config.lockLeaseMs / 4)), getSelf(),
+				new LeaseTickMsg(), getContext().system().dispatcher(), getSelf());
+	}
+
+	private void OnSyncTickMsg(SyncTickMsg msg) {
+		if (!decisionAcks.isEmpty()) {
+			// the records of the acknowledged decisions may not be written yet
+			FlushLog(true);
+			scheduleSyncTick();
+			return;
+		}
+		try {
+			wal.force();
+		} catch (IOException e) {
+			throw new UncheckedIOException("server" + serverId + ": write-ahead log not synced", e);
+		}
+		scheduleSyncTick();
+	}
+
+	private void scheduleSyncTick() {
+		getContext().system().scheduler().scheduleOnce(Duration.ofMillis(config.walSyncMs), getSelf(),
+				new SyncTickMsg(), getContext().system().dispatcher(), getSelf());
+	}
+
+	@Override
+	public void preStart() throws Exception {
+		super.preStart();
+		if (config.lockLeaseMs > 0)
+			scheduleLeaseTick();
+		if (config.walDir != null) {
+			Files.createDirectories(Paths.get(config.walDir));
+			Recover();
+			wal = new WriteAheadLog(getSegmentPath(config.walDir, serverId, walSegment));
+			log.info("server" + serverId + ": write-ahead log " + wal.getPath() + ", sync " + config.walSync);
+			if (config.walSync == WriteAheadLog.SyncPolicy.INTERVAL)
+				scheduleSyncTick();
+			if (config.checkpointMs > 0)
+				scheduleCheckpointTick();
+		}
+	}
+
+	@Override
+	public void postStop() throws Exception {
+		if (wal != null)
+			wal.close();
+		super.postStop();
 	}
 
 	private void OnGoodbyeMsg(ConsistencyTester.GoodbyeMsg msg) {
-		getSender().tell(new Server.GoodbyeMsg(serverId, datastore), getSelf());
+		getSender().tell(new Server.GoodbyeMsg(serverId, datastore.toMap()), getSelf());
 	}
 
 	@Override
 	public Receive createReceive() {
-		return receiveBuilder().match(Coordinator.ReadMsg.class, this::OnReadMsg)
+		return receiveBuilder().match(Server.WelcomeMsg.class, this::OnWelcomeMsg)
+				.match(Coordinator.ReadMsg.class, this::OnReadMsg)
 				.match(Coordinator.WriteMsg.class, this::OnWriteMsg)
+				.match(Coordinator.MultiReadMsg.class, this::OnMultiReadMsg)
+				.match(Coordinator.MultiWriteMsg.class, this::OnMultiWriteMsg)
 				.match(Coordinator.TxnAskVoteMsg.class, this::OnTxnAskVoteMsg)
+				.match(Coordinator.TxnValidateReadOnlyMsg.class, this::OnTxnValidateReadOnlyMsg)
+				.match(Coordinator.TxnOnePhaseCommitMsg.class, this::OnTxnOnePhaseCommitMsg)
 				.match(Coordinator.TxnVoteResultMsg.class, this::OnTxnVoteResultMsg)
+				.match(MigrateRangeMsg.class, this::OnMigrateRangeMsg)
+				.match(RangeHandoffMsg.class, this::OnRangeHandoffMsg)
+				.match(RangeAcceptedMsg.class, this::OnRangeAcceptedMsg)
+				.match(Replica.CatchUpMsg.class, this::OnCatchUpMsg)
+				.match(FlushMsg.class, this::OnFlushMsg)
+				.match(SyncTickMsg.class, this::OnSyncTickMsg)
+				.match(DecisionTimeoutMsg.class, this::OnDecisionTimeoutMsg)
+				.match(LeaseTickMsg.class, this::OnLeaseTickMsg)
+				.match(LockWaitTimeoutMsg.class, this::OnLockWaitTimeoutMsg)
+				.match(CheckpointTickMsg.class, this::OnCheckpointTickMsg)
+				.match(CheckpointDoneMsg.class, this::OnCheckpointDoneMsg)
 				.match(ConsistencyTester.GoodbyeMsg.class, this::OnGoodbyeMsg).build();
 	}
 
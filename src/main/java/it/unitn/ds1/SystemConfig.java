@@ -0,0 +1,35 @@
+package it.unitn.ds1;
+
+import java.io.Serializable;
+
+/*
+ * Options of the transaction protocol shared by the coordinators and the servers
+ * CtrlSystem sets them before creating the actors, they are not changed afterwards
+ */
+public class SystemConfig implements Serializable {
+	// Servers keep the old versions of the items and transactions read from a snapshot
+	public boolean multiVersion = false;
+	// Transactions without WRITE operations skip two-phase commit: they are validated in a
+	// single round without locks, or not validated at all when they read a whole snapshot
+	public boolean readOnlyFastPath = false;
+	// Transactions touching a single server are validated and applied in one round trip
+	public boolean onePhaseCommit = false;
+	// Coordinators keep the WRITEs of a transaction and send the final write set with the vote request
+	public boolean deferredWrites = false;
+	// Directory of the write-ahead logs of the servers (null: no log, the data stores live only in memory)
+	public String walDir = null;
+	// When the records of the write-ahead log are forced to the disk
+	public WriteAheadLog.SyncPolicy walSync = WriteAheadLog.SyncPolicy.COMMIT;
+	// Period of the fsync with the INTERVAL policy
+	public int walSyncMs = 10;
+	// Period of the checkpoints of the partitions, the log before a checkpoint is deleted (0: no checkpoint)
+	public int checkpointMs = 0;
+	// A server that voted COMMIT asks the coordinator for the decision after this delay (0: never)
+	public int decisionTimeoutMs = 0;
+	// Lease of the validation locks of a Txn (0: held until the decision)
+	public int lockLeaseMs = 0;
+	// A Txn finding an item locked waits for it up to this delay, locking its items in key order (0: votes ABORT at once)
+	public int lockWaitMs = 0;
+	// Validation of the Txns on the servers
+	public Validator.Type validator = Validator.Type.LOCKING;
+}
@@ -0,0 +1,95 @@
+package it.unitn.ds1;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Timestamp ordering validation (Silo / TicToc style): only the items written are locked
+ *
+ * The coordinator gives each Txn an order timestamp with the vote request, the Txns commit in the order of
+ * their timestamps. Every item has a write timestamp (order timestamp of the Txn that wrote its version) and a
+ * read timestamp (highest order timestamp of the Txns that validated a read of the version):
+ * - an item read must have the version read, not be locked by a writer, and a write timestamp below the Txn,
+ *   its read timestamp is then extended to the Txn
+ * - an item written must have read and write timestamps below the Txn
+ * The timestamps are kept per slot of a hash table, keys sharing a slot share the highest timestamps
+ * (a collision can only cause an ABORT).
+ */
+public class TimestampValidator implements Validator {
+	private static final int SLOTS = 1 << 18;
+
+	private final long[] readTs = new long[SLOTS];
+	private final long[] writeTs = new long[SLOTS];
+
+	private static int slot(int key) {
+		return Partitioner.mix(key) & (SLOTS - 1);
+	}
+
+	@Override
+	public LockMode getLockMode(Server.WorkspaceEntry entry) {
+		return entry.getWriteItem() != null ? LockMode.EXCLUSIVE : LockMode.NONE;
+	}
+
+	@Override
+	public boolean validate(Txn txn, Map<Integer, Server.WorkspaceEntry> entries, PartitionStore datastore,
+			LockTable locks, AbortStats aborts) {
+		long ts = txn.getOrderTs();
+		for (Map.Entry<Integer, Server.WorkspaceEntry> entry : entries.entrySet()) {
+			Integer dataId = entry.getKey();
+			if (!Validator.checkVersions(dataId, entry.getValue(), datastore, aborts))
+				return false;
+			int slot = slot(dataId);
+			if (entry.getValue().getWriteItem() != null) {
+				if (ts <= readTs[slot] || ts <= writeTs[slot]) {
+					aborts.record(AbortCause.TIMESTAMP_ORDER, dataId);
+					return false;
+				}
+				continue;
+			}
+			// a writer holding the lock may install a new version before the Txn commits
+			Txn owner = locks.getOwner(dataId);
+			if (owner != null && !owner.equals(txn)) {
+				aborts.record(AbortCause.LOCK_CONFLICT, dataId);
+				return false;
+			}
+			if (ts <= writeTs[slot]) {
+				aborts.record(AbortCause.TIMESTAMP_ORDER, dataId);
+				return false;
+			}
+		}
+		// the versions read stay valid up to the Txn: later writers get a higher timestamp
+		for (Map.Entry<Integer, Server.WorkspaceEntry> entry : entries.entrySet()) {
+			if (entry.getValue().getWriteItem() == null) {
+				int slot = slot(entry.getKey());
+				readTs[slot] = Math.max(readTs[slot], ts);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void committed(Txn txn, Map<Integer, Server.WorkspaceEntry> entries) {
+		for (Map.Entry<Integer, Server.WorkspaceEntry> entry : entries.entrySet()) {
+			if (entry.getValue().getWriteItem() != null) {
+				int slot = slot(entry.getKey());
+				writeTs[slot] = Math.max(writeTs[slot], txn.getOrderTs());
+			}
+		}
+	}
+
+	@Override
+	public void migrated(Set<Integer> keys, long clock) {
+		for (Integer key : keys) {
+			int slot = slot(key);
+			readTs[slot] = Math.max(readTs[slot], clock);
+			writeTs[slot] = Math.max(writeTs[slot], clock);
+		}
+	}
+
+	@Override
+	public void recovered(long clock) {
+		Arrays.fill(readTs, clock);
+		Arrays.fill(writeTs, clock);
+	}
+}
@@ -1,6 +1,15 @@
 package it.unitn.ds1;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 public class Txn {
+	// globally unique id: coordinator id in the high 32 bits, coordinator sequence number in the low 32 bits
+	private final long txnId;
 	private final Integer coordinatorId;
 	private final Integer clientId;
 
@@ -8,11 +17,55 @@ public class Txn {
 	private Integer votes;
 	private Integer votesCollected;
 
-	public Txn(int coordinatorId, int clientId) {
+	// timestamp of the snapshot read by the Txn (-1 if reads see the latest versions)
+	private long snapshotTs;
+	// commit timestamp, maximum of the timestamps of the "commit" votes
+	private long commitTs;
+	// position of the Txn in the commit order, given by the coordinator with the vote request (TIMESTAMP validator)
+	private long orderTs;
+	// false once a read did not come from the snapshot of the Txn
+	private boolean snapshotIntact;
+	// true if the votes come from the read-only validation round (no decision to send)
+	private boolean readOnlyValidation;
+	// System.nanoTime() when the votes were requested
+	private long voteStartNanos;
+
+	// servers that received operations of the Txn, they take part in the vote
+	private Set<Integer> participants;
+
+	// first item read from a replica for each key, validated by the server of the key at commit
+	private Map<Integer, DataItem> replicaReads;
+
+	// last value written for each key, kept by the coordinator until commit (deferredWrites mode)
+	private Map<Integer, Integer> writeBuffer;
+
+	// batched READ of the client: values received and number of server batches still expected
+	private Map<Integer, Integer> batchReadValues;
+	private int pendingReadBatches;
+
+	public Txn(long txnId, int coordinatorId, int clientId) {
+		this.txnId = txnId;
 		this.coordinatorId = coordinatorId;
 		this.clientId = clientId;
 		this.votes = 0;
 		this.votesCollected = 0;
+		this.snapshotTs = -1;
+		this.commitTs = 0;
+		this.orderTs = 0;
+		this.snapshotIntact = true;
+		this.readOnlyValidation = false;
+		this.pendingReadBatches = 0;
+	}
+
+	/*
+	 * Build the id of the seqNum-th Txn started by a coordinator
+	 */
+	public static long makeTxnId(int coordinatorId, int seqNum) {
+		return ((long) coordinatorId << 32) | (seqNum & 0xFFFFFFFFL);
+	}
+
+	public long getTxnId() {
+		return txnId;
 	}
 
 	public Integer getCoordinatorId() {
@@ -41,11 +94,130 @@ public class Txn {
 		
 	}
 	
+	public long getSnapshotTs() {
+		return snapshotTs;
+	}
+
+	public void setSnapshotTs(long snapshotTs) {
+		this.snapshotTs = snapshotTs;
+	}
+
+	public long getCommitTs() {
+		return commitTs;
+	}
+
+	public void setCommitTs(long commitTs) {
+		this.commitTs = commitTs;
+	}
+
+	public long getOrderTs() {
+		return orderTs;
+	}
+
+	public void setOrderTs(long orderTs) {
+		this.orderTs = orderTs;
+	}
+
+	public boolean isSnapshotIntact() {
+		return snapshotIntact;
+	}
+
+	public void setSnapshotIntact(boolean snapshotIntact) {
+		this.snapshotIntact = snapshotIntact;
+	}
+
+	public long getVoteStartNanos() {
+		return voteStartNanos;
+	}
+
+	public void setVoteStartNanos(long voteStartNanos) {
+		this.voteStartNanos = voteStartNanos;
+	}
+
+	public boolean isReadOnlyValidation() {
+		return readOnlyValidation;
+	}
+
+	public void setReadOnlyValidation(boolean readOnlyValidation) {
+		this.readOnlyValidation = readOnlyValidation;
+	}
+
+	/*
+	 * Buffer a WRITE, replacing the previous value written for the key
+	 */
+	public void bufferWrite(Integer key, Integer value) {
+		if (writeBuffer == null)
+			writeBuffer = new LinkedHashMap<Integer, Integer>();
+		writeBuffer.put(key, value);
+	}
+
+	/*
+	 * Return the last value buffered for the key (null if the key was not written)
+	 */
+	public Integer getBufferedWrite(Integer key) {
+		if (writeBuffer == null)
+			return null;
+		return writeBuffer.get(key);
+	}
+
+	public void addParticipant(Integer serverId) {
+		if (participants == null)
+			participants = new HashSet<Integer>();
+		participants.add(serverId);
+	}
+
+	public Set<Integer> getParticipants() {
+		if (participants == null)
+			return Collections.emptySet();
+		return participants;
+	}
+
+	public void addReplicaRead(Integer key, DataItem dataItem) {
+		if (replicaReads == null)
+			replicaReads = new LinkedHashMap<Integer, DataItem>();
+		replicaReads.putIfAbsent(key, dataItem);
+	}
+
+	public Map<Integer, DataItem> getReplicaReads() {
+		if (replicaReads == null)
+			return Collections.emptyMap();
+		return replicaReads;
+	}
+
+	public Map<Integer, Integer> getWriteBuffer() {
+		if (writeBuffer == null)
+			return Collections.emptyMap();
+		return writeBuffer;
+	}
+
+	/*
+	 * Start collecting a batched READ split in nBatches server batches
+	 */
+	public void startReadBatch(int nBatches) {
+		this.batchReadValues = new HashMap<Integer, Integer>();
+		this.pendingReadBatches = nBatches;
+	}
+
+	/*
+	 * Add the values of a server batch
+	 * 
+	 * @return true if it was the last batch expected
+	 */
+	public boolean addReadBatch(Map<Integer, Integer> values) {
+		batchReadValues.putAll(values);
+		pendingReadBatches--;
+		return pendingReadBatches == 0;
+	}
+
+	public Map<Integer, Integer> getBatchReadValues() {
+		return batchReadValues;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + 100 * coordinatorId + clientId;
+		result = prime * result + Long.hashCode(txnId);
 		return result;
 	}
 
@@ -58,9 +230,7 @@ public class Txn {
 		if (getClass() != obj.getClass())
 			return false;
 		Txn other = (Txn) obj;
-		if (coordinatorId != other.getCoordinatorId())
-			return false;
-		if (clientId != other.getClientId())
+		if (txnId != other.getTxnId())
 			return false;
 		return true;
 	}
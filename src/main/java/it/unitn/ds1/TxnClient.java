@@ -17,6 +17,10 @@ public class TxnClient extends AbstractActor {
 	private static final int MIN_TXN_LENGTH = 4;
 	private static final int MAX_TXN_LENGTH = 10;
 	private static final int RAND_LENGTH_RANGE = MAX_TXN_LENGTH - MIN_TXN_LENGTH + 1;
+	// delay between transactions from the same client
+	private static final int THINK_TIME_MS = 100;
+	// send the two READs (and the two WRITEs) of an operation in a single message
+	private static final boolean BATCH_OPERATIONS = true;
 
 	private final Integer clientId;
 	private List<ActorRef> coordinators;
@@ -28,6 +32,16 @@ public class TxnClient extends AbstractActor {
 	private Integer numAttemptedTxn;
 	private Integer numCommittedTxn;
 
+	// measurements of the benchmark, since the last ResetStatsMsg
+	private long txnStartNanos;
+	private long measuredCommitted;
+	// TXNs aborted by the system (conflicts, lock waits, ...) and TXNs the client ended with an abort
+	private long measuredAborted;
+	private long measuredClientAborted;
+	// the current TXN was ended with an abort by the client
+	private boolean abortRequested;
+	private final LatencyHistogram commitLatency;
+
 	// TXN operation (move some amount from a value to another)
 	private Boolean acceptedTxn;
 	private ActorRef currentCoordinator;
@@ -47,6 +61,7 @@ public class TxnClient extends AbstractActor {
 		this.numAttemptedTxn = 0;
 		this.numCommittedTxn = 0;
 		this.r = new Random();
+		this.commitLatency = new LatencyHistogram();
 	}
 
 	static public Props props(int clientId) {
@@ -74,9 +89,11 @@ public class TxnClient extends AbstractActor {
 	// message the client sends to a coordinator to begin the TXN
 	public static class TxnBeginMsg implements Serializable {
 		public final Integer clientId;
+		public final long sentNanos; // System.nanoTime() at creation, all the actors run in the same JVM
 
 		public TxnBeginMsg(int clientId) {
 			this.clientId = clientId;
+			this.sentNanos = System.nanoTime();
 		}
 	}
 
@@ -88,6 +105,10 @@ public class TxnClient extends AbstractActor {
 	public static class TxnAcceptTimeoutMsg implements Serializable {
 	}
 
+	// the client starts a new TXN when its think time is over (sent to self)
+	public static class BeginTxnMsg implements Serializable {
+	}
+
 	// message the client sends to a coordinator to end the TXN;
 	// it may ask for commit (with probability COMMIT_PROBABILITY), or abort
 	public static class TxnEndMsg implements Serializable {
@@ -124,6 +145,28 @@ public class TxnClient extends AbstractActor {
 		}
 	}
 
+	// READ request for several keys from the client to the coordinator
+	public static class MultiReadMsg implements Serializable {
+		public final Integer clientId;
+		public final List<Integer> keys; // the keys of the values to read
+
+		public MultiReadMsg(int clientId, List<Integer> keys) {
+			this.clientId = clientId;
+			this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+		}
+	}
+
+	// WRITE request for several keys from the client to the coordinator
+	public static class MultiWriteMsg implements Serializable {
+		public final Integer clientId;
+		public final Map<Integer, Integer> values; // the new value to write for each key
+
+		public MultiWriteMsg(int clientId, Map<Integer, Integer> values) {
+			this.clientId = clientId;
+			this.values = Collections.unmodifiableMap(new HashMap<>(values));
+		}
+	}
+
 	// reply from the coordinator when requested a READ on a given key
 	public static class ReadResultMsg implements Serializable {
 		public final Integer key; // the key associated to the requested item
@@ -135,6 +178,15 @@ public class TxnClient extends AbstractActor {
 		}
 	}
 
+	// reply from the coordinator when requested a READ on several keys
+	public static class MultiReadResultMsg implements Serializable {
+		public final Map<Integer, Integer> values; // the value found in the data store for each key
+
+		public MultiReadResultMsg(Map<Integer, Integer> values) {
+			this.values = Collections.unmodifiableMap(new HashMap<>(values));
+		}
+	}
+
 	// message from the coordinator to the client with the outcome of the TXN
 	public static class TxnResultMsg implements Serializable {
 		public final Boolean commit; // if false, the transaction was aborted
@@ -144,21 +196,40 @@ public class TxnClient extends AbstractActor {
 		}
 	}
 
+	// start the measurements of the benchmark again (e.g. at the end of the warm-up)
+	public static class ResetStatsMsg implements Serializable {
+	}
+
+	// ask the client for its measurements, it replies with StatsMsg
+	public static class StatsRequestMsg implements Serializable {
+	}
+
+	// measurements of the client since the last ResetStatsMsg
+	public static class StatsMsg implements Serializable {
+		public final Integer clientId;
+		public final long committed;
+		public final long aborted; // aborted by the system, not asked by the client
+		public final long clientAborted;
+		public final LatencyHistogram commitLatency; // nanoseconds from TXN begin to the outcome, committed TXNs only
+
+		public StatsMsg(int clientId, long committed, long aborted, long clientAborted, LatencyHistogram commitLatency) {
+			this.clientId = clientId;
+			this.committed = committed;
+			this.aborted = aborted;
+			this.clientAborted = clientAborted;
+			this.commitLatency = commitLatency;
+		}
+	}
+
 	/*-- Actor methods -------------------------------------------------------- */
 
 	// start a new TXN: choose a random coordinator, send TxnBeginMsg and set
 	// timeout
 	void beginTxn() {
-
-		// some delay between transactions from the same client
-		try {
-			Thread.sleep(100);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
 		acceptedTxn = false;
+		abortRequested = false;
 		numAttemptedTxn++;
+		txnStartNanos = System.nanoTime();
 
 		// contact a random coordinator and begin TXN
 		currentCoordinator = coordinators.get(r.nextInt(coordinators.size()));
@@ -176,9 +247,17 @@ public class TxnClient extends AbstractActor {
 		log.info("client" + clientId + " BEGIN");
 	}
 
+	// start a new TXN after some delay, without blocking the thread of the actor
+	void scheduleBeginTxn() {
+		getContext().system().scheduler().scheduleOnce(Duration.create(THINK_TIME_MS, TimeUnit.MILLISECONDS),
+				getSelf(), new BeginTxnMsg(), // message sent to myself
+				getContext().system().dispatcher(), getSelf());
+	}
+
 	// end the current TXN sending TxnEndMsg to the coordinator
 	void endTxn() {
 		boolean doCommit = r.nextDouble() < COMMIT_PROBABILITY;
+		abortRequested = !doCommit;
 		currentCoordinator.tell(new TxnEndMsg(clientId, doCommit), getSelf());
 		firstValue = null;
 		secondValue = null;
@@ -195,8 +274,12 @@ public class TxnClient extends AbstractActor {
 		secondKey = (firstKey + randKeyOffset) % (maxKey + 1);
 
 		// READ requests
-		currentCoordinator.tell(new ReadMsg(clientId, firstKey), getSelf());
-		currentCoordinator.tell(new ReadMsg(clientId, secondKey), getSelf());
+		if (BATCH_OPERATIONS) {
+			currentCoordinator.tell(new MultiReadMsg(clientId, Arrays.asList(firstKey, secondKey)), getSelf());
+		} else {
+			currentCoordinator.tell(new ReadMsg(clientId, firstKey), getSelf());
+			currentCoordinator.tell(new ReadMsg(clientId, secondKey), getSelf());
+		}
 
 		// delete the current read values
 		firstValue = null;
@@ -213,8 +296,15 @@ public class TxnClient extends AbstractActor {
 		Integer amountTaken = 0;
 		if (firstValue >= 1)
 			amountTaken = 1 + r.nextInt(firstValue);
-		currentCoordinator.tell(new WriteMsg(clientId, firstKey, firstValue - amountTaken), getSelf());
-		currentCoordinator.tell(new WriteMsg(clientId, secondKey, secondValue + amountTaken), getSelf());
+		if (BATCH_OPERATIONS) {
+			Map<Integer, Integer> values = new HashMap<>();
+			values.put(firstKey, firstValue - amountTaken);
+			values.put(secondKey, secondValue + amountTaken);
+			currentCoordinator.tell(new MultiWriteMsg(clientId, values), getSelf());
+		} else {
+			currentCoordinator.tell(new WriteMsg(clientId, firstKey, firstValue - amountTaken), getSelf());
+			currentCoordinator.tell(new WriteMsg(clientId, secondKey, secondValue + amountTaken), getSelf());
+		}
 		log.info("client" + clientId + " WRITE #" + numOpDone + " taken " + amountTaken + " (" + firstKey + ", "
 				+ (firstValue - amountTaken) + "), (" + secondKey + ", " + (secondValue + amountTaken) + ")");
 	}
@@ -225,7 +315,7 @@ public class TxnClient extends AbstractActor {
 		this.coordinators = msg.coordinators;
 		log.info(coordinators);
 		this.maxKey = msg.maxKey;
-		beginTxn();
+		scheduleBeginTxn();
 	}
 
 	private void onStopMsg(StopMsg msg) {
@@ -238,9 +328,13 @@ public class TxnClient extends AbstractActor {
 		readTwo();
 	}
 
-	private void onTxnAcceptTimeoutMsg(TxnAcceptTimeoutMsg msg) throws InterruptedException {
+	private void onBeginTxnMsg(BeginTxnMsg msg) {
+		beginTxn();
+	}
+
+	private void onTxnAcceptTimeoutMsg(TxnAcceptTimeoutMsg msg) {
 		if (!acceptedTxn)
-			beginTxn();
+			scheduleBeginTxn();
 	}
 
 	private void onReadResultMsg(ReadResultMsg msg) {
@@ -252,6 +346,21 @@ public class TxnClient extends AbstractActor {
 		if (msg.key.equals(secondKey))
 			secondValue = msg.value;
 
+		onValuesRead();
+	}
+
+	private void onMultiReadResultMsg(MultiReadResultMsg msg) {
+		log.info("client" + clientId + "<--[READ" + msg.values + "]");
+
+		// save the read values
+		firstValue = msg.values.get(firstKey);
+		secondValue = msg.values.get(secondKey);
+
+		onValuesRead();
+	}
+
+	// go on with the TXN once READ results are received
+	private void onValuesRead() {
 		boolean opDone = (firstValue != null && secondValue != null);
 
 		// do we only read or also write?
@@ -271,17 +380,35 @@ public class TxnClient extends AbstractActor {
 		}
 	}
 
-	private void onTxnResultMsg(TxnResultMsg msg) throws InterruptedException {
+	private void onTxnResultMsg(TxnResultMsg msg) {
 		if (msg.commit) {
 			numCommittedTxn++;
+			measuredCommitted++;
+			commitLatency.record(System.nanoTime() - txnStartNanos);
 			log.info("client" + clientId + "<--[COMMIT OK(" + numCommittedTxn + "/" + numAttemptedTxn + ")]");
 		} else {
 			log.info("client" + clientId + "<--[COMMIT FAIL (" + (numAttemptedTxn - numCommittedTxn) + "/"
 					+ numAttemptedTxn + ")]");
+			if (abortRequested)
+				measuredClientAborted++;
+			else
+				measuredAborted++;
 		}
 		
 //only one txn test (temporary)
-		beginTxn();
+		scheduleBeginTxn();
+	}
+
+	private void onResetStatsMsg(ResetStatsMsg msg) {
+		measuredCommitted = 0;
+		measuredAborted = 0;
+		measuredClientAborted = 0;
+		commitLatency.reset();
+	}
+
+	private void onStatsRequestMsg(StatsRequestMsg msg) {
+		getSender().tell(new StatsMsg(clientId, measuredCommitted, measuredAborted, measuredClientAborted,
+				commitLatency.copy()), getSelf());
 	}
 
 	@Override
@@ -289,7 +416,10 @@ public class TxnClient extends AbstractActor {
 		return receiveBuilder().match(WelcomeMsg.class, this::onWelcomeMsg)
 				.match(TxnAcceptMsg.class, this::onTxnAcceptMsg)
 				.match(TxnAcceptTimeoutMsg.class, this::onTxnAcceptTimeoutMsg)
-				.match(ReadResultMsg.class, this::onReadResultMsg).match(TxnResultMsg.class, this::onTxnResultMsg)
+				.match(BeginTxnMsg.class, this::onBeginTxnMsg)
+				.match(ReadResultMsg.class, this::onReadResultMsg)
+				.match(MultiReadResultMsg.class, this::onMultiReadResultMsg).match(TxnResultMsg.class, this::onTxnResultMsg)
+				.match(ResetStatsMsg.class, this::onResetStatsMsg).match(StatsRequestMsg.class, this::onStatsRequestMsg)
 				.match(StopMsg.class, this::onStopMsg).build();
 	}
 }
@@ -0,0 +1,97 @@
+package it.unitn.ds1;
+
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Validation of the private workspace of a Txn on a server, when the coordinator asks its vote
+ * (and in the one-phase commit): the server locks the items in the mode given by the validator, then validates them
+ */
+public interface Validator {
+
+	/*
+	 * Available validators
+	 */
+	enum Type {
+		// shared locks on the items read, exclusive locks on the items written, then version checks
+		LOCKING,
+		// exclusive locks on the items written only, reads checked against the order timestamp of the Txn
+		TIMESTAMP
+	}
+
+	enum LockMode {
+		NONE, SHARED, EXCLUSIVE
+	}
+
+	/*
+	 * Lock taken on an item of the workspace before the validation
+	 */
+	LockMode getLockMode(Server.WorkspaceEntry entry);
+
+	/*
+	 * Check the items of the workspace, locked in the modes given by getLockMode
+	 * 
+	 * @param txn, entries, datastore, locks
+	 * @param aborts records the cause of an ABORT
+	 * @return true if the Txn can commit
+	 */
+	boolean validate(Txn txn, Map<Integer, Server.WorkspaceEntry> entries, PartitionStore datastore, LockTable locks,
+			AbortStats aborts);
+
+	/*
+	 * The WRITEs of the Txn are installed, its locks are not released yet
+	 */
+	default void committed(Txn txn, Map<Integer, Server.WorkspaceEntry> entries) {
+	}
+
+	/*
+	 * The items of the keys moved from another server: every timestamp the source saw for them is at most its clock
+	 * (Txns validated on the source may still be undecided, their reads hold no lock)
+	 */
+	default void migrated(Set<Integer> keys, long clock) {
+	}
+
+	/*
+	 * The server restarted: every timestamp it saw before is at most its clock
+	 */
+	default void recovered(long clock) {
+	}
+
+	static Validator create(Type type) {
+		switch (type) {
+		case LOCKING:
+			return new LockingValidator();
+		case TIMESTAMP:
+			return new TimestampValidator();
+		default:
+			throw new IllegalArgumentException("Unknown validator " + type);
+		}
+	}
+
+	/*
+	 * The version read must still be the latest one, the version overwritten too
+	 * 
+	 * @return false if the Txn must abort, the cause is recorded
+	 */
+	static boolean checkVersions(Integer dataId, Server.WorkspaceEntry entry, PartitionStore datastore,
+			AbortStats aborts) {
+		if (!datastore.contains(dataId)) {
+			aborts.record(AbortCause.RANGE_MOVED, dataId);
+			return false;
+		}
+		int versionOriginal = datastore.getVersion(dataId);
+		//read operations: the first version read must still be the one in the data store
+		DataItem dataItemReadCheck = entry.getReadItem();
+		if (dataItemReadCheck != null && versionOriginal != dataItemReadCheck.getVersion()) {
+			aborts.record(AbortCause.STALE_READ, dataId);
+			return false;
+		}
+		//write operations: the version overwritten must still be the one in the data store
+		DataItem dataItemWriteCheck = entry.getWriteItem();
+		if (dataItemWriteCheck != null && versionOriginal != entry.getBaseVersion()) {
+			aborts.record(AbortCause.WRITE_CONFLICT, dataId);
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,121 @@
+package it.unitn.ds1;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+ * Old versions of the items of a partition store, used to serve snapshot reads
+ * 
+ * The latest version of every key stays in the partition store, a chain of versions
+ * (newest first, each one tagged with the commit timestamp that installed it) is kept
+ * only for the keys written while some snapshot could still need the previous version.
+ * A key without chain has a latest version installed before the watermark.
+ */
+public class VersionHistory {
+
+	private static class Version {
+		final long commitTs;
+		final int version;
+		final int value;
+		Version older;
+
+		Version(long commitTs, int version, int value, Version older) {
+			this.commitTs = commitTs;
+			this.version = version;
+			this.value = value;
+			this.older = older;
+		}
+	}
+
+	// Newest version of each key that has a chain
+	private final Map<Integer, Version> chains;
+	// Versions committed before the watermark are not tracked anymore
+	private long watermark;
+
+	public VersionHistory() {
+		this.chains = new HashMap<Integer, Version>();
+		this.watermark = 0;
+	}
+
+	public long getWatermark() {
+		return watermark;
+	}
+
+	public int size() {
+		return chains.size();
+	}
+
+	/*
+	 * Return the version of the key visible at the snapshot, i.e. the newest one committed
+	 * at or before snapshotTs (null if that version was garbage-collected)
+	 */
+	public DataItem read(PartitionStore store, int key, long snapshotTs) {
+		if (snapshotTs < watermark)
+			return null;
+		Version v = chains.get(key);
+		if (v == null)
+			return store.get(key);
+		while (v != null && v.commitTs > snapshotTs)
+			v = v.older;
+		if (v == null)
+			return null;
+		return new DataItem(v.version, v.value);
+	}
+
+	/*
+	 * Install a new version of the key in the store, keeping the overwritten one
+	 * as long as snapshots older than commitTs may read it
+	 * 
+	 * @param minSnapshotTs oldest snapshot still in use
+	 */
+	public void install(PartitionStore store, int key, int version, int value, long commitTs, long minSnapshotTs) {
+		Version head = chains.get(key);
+		if (head == null)
+			head = new Version(watermark, store.getVersion(key), store.getValue(key), null);
+		head = new Version(commitTs, version, value, head);
+		store.put(key, version, value);
+		prune(head, minSnapshotTs);
+		chains.put(key, head);
+	}
+
+	/*
+	 * Forget the versions of a key that left the partition
+	 */
+	public void remove(int key) {
+		chains.remove(key);
+	}
+
+	/*
+	 * Register a key that joined the partition with its latest version, committed at some unknown time
+	 * before commitTs: older snapshots can't read it and fall back to the latest version
+	 */
+	public void addMigrated(int key, int version, int value, long commitTs) {
+		chains.put(key, new Version(commitTs, version, value, null));
+	}
+
+	/*
+	 * Drop the versions that no snapshot at or after minSnapshotTs can read anymore
+	 */
+	public void collect(long minSnapshotTs) {
+		Iterator<Map.Entry<Integer, Version>> it = chains.entrySet().iterator();
+		while (it.hasNext()) {
+			Version head = it.next().getValue();
+			prune(head, minSnapshotTs);
+			// only the latest version is left, and every snapshot can read it from the store
+			if (head.older == null && head.commitTs <= minSnapshotTs)
+				it.remove();
+		}
+		if (minSnapshotTs > watermark)
+			watermark = minSnapshotTs;
+	}
+
+	// Cut the chain after the newest version visible at minSnapshotTs
+	private void prune(Version head, long minSnapshotTs) {
+		Version v = head;
+		while (v != null && v.commitTs > minSnapshotTs)
+			v = v.older;
+		if (v != null)
+			v.older = null;
+	}
+}
@@ -0,0 +1,187 @@
+package it.unitn.ds1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only log of the committed write sets of a server
+ *
+ * Records are staged in memory and written to the file by flush(), which also forces them to the disk if asked:
+ * the server calls it once for all the records appended since the last flush (group commit).
+ * Record layout: length and CRC32 of the body, then type, Txn id, timestamp, number of items and
+ * (key, version, value) of each item. A record cut by a crash has a wrong CRC and ends the log.
+ *
+ * A server starts a new segment (file) of its log when it restarts and when it takes a checkpoint,
+ * the segments older than the last checkpoint are deleted.
+ * A coordinator logs its COMMIT decisions in the same format, in a single file.
+ */
+public class WriteAheadLog implements Closeable {
+
+	/*
+	 * When the records reach the disk
+	 */
+	public enum SyncPolicy {
+		// before the server answers (one fsync per group of commits)
+		COMMIT,
+		// every walSyncMs milliseconds, the server answers before
+		INTERVAL,
+		// never, the operating system decides
+		NONE
+	}
+
+	// A Txn voted COMMIT, with the items it writes (timestamp: prepare timestamp)
+	public static final byte PREPARE = 1;
+	// Decision of a prepared Txn (timestamp: commit timestamp), no item
+	// (in the log of a coordinator: the servers of the Txn as keys, the values are not used)
+	public static final byte COMMIT = 2;
+	public static final byte ABORT = 3;
+	// Txn committed by one-phase commit, with the items it wrote (timestamp: commit timestamp)
+	public static final byte ONE_PHASE_COMMIT = 4;
+	// Items of a key range received from another server (timestamp: clock of the source)
+	public static final byte RANGE_IN = 5;
+	// Items of a key range moved to another server
+	public static final byte RANGE_OUT = 6;
+	// Sequence numbers of Txn ids reserved by a coordinator, up to the id (exclusive), no item
+	public static final byte TXN_IDS = 7;
+
+	/*
+	 * Receives the records of a log being replayed
+	 */
+	public interface RecordHandler {
+		void record(byte type, long id, long ts, Map<Integer, DataItem> items);
+	}
+
+	private static final int HEADER_SIZE = 8; // length and CRC32
+	private static final int ITEM_SIZE = 12;
+
+	private final Path path;
+	private final FileChannel channel;
+	private ByteBuffer staged = ByteBuffer.allocate(64 * 1024);
+	private int stagedRecords;
+	private final CRC32 crc = new CRC32();
+
+	public WriteAheadLog(Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		this.channel.position(channel.size());
+		this.stagedRecords = 0;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/*
+	 * Stage a record, it reaches the file at the next flush
+	 */
+	public void append(byte type, long txnId, long ts, Map<Integer, DataItem> items) {
+		int bodySize = 1 + 8 + 8 + 4 + ITEM_SIZE * items.size();
+		ensureCapacity(HEADER_SIZE + bodySize);
+		int start = staged.position();
+		staged.putInt(bodySize);
+		staged.putInt(0); // CRC32, set once the body is written
+		staged.put(type);
+		staged.putLong(txnId);
+		staged.putLong(ts);
+		staged.putInt(items.size());
+		for (Map.Entry<Integer, DataItem> item : items.entrySet()) {
+			staged.putInt(item.getKey());
+			staged.putInt(item.getValue().getVersion());
+			staged.putInt(item.getValue().getValue());
+		}
+		crc.reset();
+		crc.update(staged.array(), start + HEADER_SIZE, bodySize);
+		staged.putInt(start + 4, (int) crc.getValue());
+		stagedRecords++;
+	}
+
+	private void ensureCapacity(int size) {
+		if (staged.remaining() >= size)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(staged.capacity() * 2, staged.position() + size));
+		staged.flip();
+		larger.put(staged);
+		staged = larger;
+	}
+
+	public boolean hasStaged() {
+		return stagedRecords > 0;
+	}
+
+	/*
+	 * Write the staged records to the file
+	 *
+	 * @param force also force them to the disk
+	 * @return number of records written
+	 */
+	public int flush(boolean force) throws IOException {
+		int records = stagedRecords;
+		staged.flip();
+		while (staged.hasRemaining())
+			channel.write(staged);
+		staged.clear();
+		stagedRecords = 0;
+		if (force)
+			channel.force(false);
+		return records;
+	}
+
+	/*
+	 * Force the records already written to the disk
+	 */
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	/*
+	 * Read the records of a segment, up to the end or the first record cut by a crash
+	 *
+	 * @return number of records read
+	 */
+	public static int replay(Path path, RecordHandler handler) throws IOException {
+		int records = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			byte[] body = new byte[0];
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int bodySize = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (bodySize < 21 || bodySize > buffer.remaining())
+					break;
+				if (body.length < bodySize)
+					body = new byte[bodySize];
+				buffer.get(body, 0, bodySize);
+				crc.reset();
+				crc.update(body, 0, bodySize);
+				if ((int) crc.getValue() != checksum)
+					break;
+				ByteBuffer record = ByteBuffer.wrap(body, 0, bodySize);
+				byte type = record.get();
+				long id = record.getLong();
+				long ts = record.getLong();
+				int n = record.getInt();
+				Map<Integer, DataItem> items = new LinkedHashMap<Integer, DataItem>();
+				for (int i = 0; i < n; i++)
+					items.put(record.getInt(), new DataItem(record.getInt(), record.getInt()));
+				handler.record(type, id, ts, items);
+				records++;
+			}
+		}
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush(true);
+		channel.close();
+	}
+}